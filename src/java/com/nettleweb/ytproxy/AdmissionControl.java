@@ -0,0 +1,204 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Decides whether a request that needs an upstream extraction may run now, and runs it on a worker
+ * once it may. Each endpoint has its own lane with a limited number of running requests and a bounded
+ * number of waiting ones, so a burst on one endpoint can't occupy every worker. Requests wait for
+ * their lane and then for a worker on their exchange's own thread, without holding a worker. A request
+ * that finds its lane's queue full is turned away at once, and one that can't start before its wait
+ * budget runs out is dropped instead of doing work the client has likely given up on. The budget
+ * counts from the moment the server hands the exchange to the executor.
+ */
+final class AdmissionControl {
+	public static final AdmissionControl instance = new AdmissionControl();
+
+	private static final ThreadLocal<Ticket> current = new ThreadLocal<>();
+
+	private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder shed = new LongAdder();
+
+	private volatile ExchangeExecutor executor = null;
+	private volatile int laneConcurrency = 5;
+	private volatile int maxQueue = 64;
+	private volatile long maxWait = 10000L;
+
+	private AdmissionControl() {}
+
+	/**
+	 * Sets the limits; must be called before the first request. Each lane may use up to three
+	 * quarters of the workers, leaving the rest to the other endpoints.
+	 */
+	void configure(@NotNull ExchangeExecutor executor, int workers, int maxQueue, long maxWait) {
+		this.executor = executor;
+		this.laneConcurrency = Math.max((workers * 3 + 3) / 4, 1);
+		this.maxQueue = maxQueue;
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Returns the number of seconds a turned away client should wait before retrying.
+	 */
+	long retryAfter() {
+		return Math.max((maxWait + 999L) / 1000L, 1L);
+	}
+
+	/**
+	 * Wraps an exchange handed to an executor, remembering when it was queued. A shed exchange may only
+	 * serve requests that skip admission.
+	 */
+	@NotNull
+	Runnable track(@NotNull Runnable command, boolean shed) {
+		Ticket ticket = new Ticket(System.nanoTime(), shed);
+		return () -> {
+			ticket.started = System.nanoTime();
+			current.set(ticket);
+			try {
+				command.run();
+			} finally {
+				current.remove();
+			}
+		};
+	}
+
+	/**
+	 * Returns how long the current exchange waited for its thread to start in nanoseconds, or -1 if it
+	 * was not run by one of our executors.
+	 */
+	long waited() {
+		Ticket ticket = current.get();
+		return ticket == null ? -1L : ticket.started - ticket.queued;
+	}
+
+	/**
+	 * Waits for a running slot in the given lane and then for a worker, and runs the task on that worker.
+	 * Returns false without running it if the request should be answered with 503 instead.
+	 */
+	boolean run(@NotNull String name, @NotNull Task task) throws IOException {
+		Ticket ticket = current.get();
+		ExchangeExecutor executor = this.executor;
+		if (ticket == null || executor == null) {
+			// not run by one of our executors
+			task.run();
+			return true;
+		}
+
+		if (ticket.shed) {
+			shed.increment();
+			return false;
+		}
+
+		long deadline = ticket.queued + TimeUnit.MILLISECONDS.toNanos(maxWait);
+		if (deadline - System.nanoTime() <= 0L) {
+			expired.increment();
+			return false;
+		}
+
+		Lane lane = lanes.computeIfAbsent(name, k -> new Lane(laneConcurrency));
+		if (lane.waiting.incrementAndGet() > maxQueue) {
+			lane.waiting.decrementAndGet();
+			rejected.increment();
+			return false;
+		}
+
+		try {
+			if (!lane.permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				expired.increment();
+				return false;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			lane.waiting.decrementAndGet();
+		}
+
+		try {
+			try {
+				if (!executor.reserve(deadline - System.nanoTime())) {
+					expired.increment();
+					return false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+
+			RequestTiming timing = RequestTiming.current();
+			Thread caller = Thread.currentThread();
+			try {
+				executor.work(() -> {
+					RequestTiming.attach(timing);
+					try {
+						RequestTiming.queued(System.nanoTime() - ticket.queued);
+						task.run();
+					} finally {
+						if (Thread.currentThread() != caller)
+							RequestTiming.attach(null);
+					}
+				});
+			} finally {
+				executor.release();
+			}
+		} finally {
+			lane.permits.release();
+		}
+
+		return true;
+	}
+
+	long rejected() {
+		return rejected.sum();
+	}
+
+	long expired() {
+		return expired.sum();
+	}
+
+	long shed() {
+		return shed.sum();
+	}
+
+	int queued() {
+		int queued = 0;
+		for (Lane lane : lanes.values())
+			queued += lane.waiting.get();
+
+		return queued;
+	}
+
+	/**
+	 * Work of an admitted request.
+	 */
+	interface Task {
+		void run() throws IOException;
+	}
+
+	private static final class Lane {
+		final Semaphore permits;
+		final AtomicInteger waiting = new AtomicInteger();
+
+		Lane(int concurrency) {
+			this.permits = new Semaphore(concurrency, true);
+		}
+	}
+
+	private static final class Ticket {
+		final long queued;
+		final boolean shed;
+		long started = 0L;
+
+		Ticket(long queued, boolean shed) {
+			this.queued = queued;
+			this.shed = shed;
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class BufferPool {
+	public static final BufferPool instance = new BufferPool(16384, 1024);
+
+	final int bufferSize;
+	private final int maxPooled;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	private BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	@NotNull
+	byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer == null)
+			return new byte[bufferSize];
+
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	void release(@NotNull byte[] buffer) {
+		if (buffer.length != bufferSize)
+			return;
+
+		// drop the buffer (leave it to the GC) once the pool is full
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+
+		buffers.offer(buffer);
+	}
+}
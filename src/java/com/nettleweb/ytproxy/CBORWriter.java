@@ -0,0 +1,106 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+
+/**
+ * Encodes CBOR (RFC 8949). Objects and arrays use indefinite-length encoding, so the body can be
+ * streamed before the number of entries is known.
+ */
+final class CBORWriter extends ResponseWriter {
+	private static final int typeUnsigned = 0;
+	private static final int typeNegative = 1 << 5;
+	private static final int typeText = 3 << 5;
+
+	private static final int indefiniteArray = 0x9F;
+	private static final int indefiniteMap = 0xBF;
+	private static final int valueFalse = 0xF4;
+	private static final int valueTrue = 0xF5;
+	private static final int valueNull = 0xF6;
+	private static final int breakCode = 0xFF;
+
+	CBORWriter(@Nullable HttpExchange exchange, @Nullable Projection projection) {
+		super(exchange, projection, true);
+	}
+
+	@NotNull
+	@Override
+	String contentType() {
+		return "application/cbor";
+	}
+
+	@Override
+	void writeBeginObject() throws IOException {
+		writeByte(indefiniteMap);
+	}
+
+	@Override
+	void writeEndObject(int size) throws IOException {
+		writeByte(breakCode);
+	}
+
+	@Override
+	void writeBeginArray() throws IOException {
+		writeByte(indefiniteArray);
+	}
+
+	@Override
+	void writeEndArray(int size) throws IOException {
+		writeByte(breakCode);
+	}
+
+	@Override
+	void writeName(@NotNull String name) throws IOException {
+		writeString(name);
+	}
+
+	@Override
+	void writeNull() throws IOException {
+		writeByte(valueNull);
+	}
+
+	@Override
+	void writeBoolean(boolean value) throws IOException {
+		writeByte(value ? valueTrue : valueFalse);
+	}
+
+	@Override
+	void writeLong(long value) throws IOException {
+		if (value >= 0L)
+			writeHead(typeUnsigned, value);
+		else
+			writeHead(typeNegative, ~value); // -1 - value
+	}
+
+	@Override
+	void writeString(@NotNull String str) throws IOException {
+		byte[] scratch = scratch(str.length() * 3);
+		int length = JSONEscaper.encodeUTF8(str, scratch);
+		writeHead(typeText, length);
+		writeBytes(scratch, 0, length);
+	}
+
+	private void writeHead(int type, long value) throws IOException {
+		if (value < 24L) {
+			writeByte(type | (int) value);
+		} else if (value < 0x100L) {
+			writeByte(type | 24);
+			writeByte((int) value);
+		} else if (value < 0x10000L) {
+			writeByte(type | 25);
+			writeByte((int) (value >>> 8));
+			writeByte((int) value);
+		} else if (value < 0x100000000L) {
+			writeByte(type | 26);
+			for (int shift = 24; shift >= 0; shift -= 8)
+				writeByte((int) (value >>> shift));
+		} else {
+			// also covers the unsigned range above Long.MAX_VALUE
+			writeByte(type | 27);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				writeByte((int) (value >>> shift));
+		}
+	}
+}
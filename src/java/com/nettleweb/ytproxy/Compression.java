@@ -0,0 +1,129 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.zip.*;
+
+final class Compression {
+	// below this size the encoding overhead outweighs the savings
+	static final int minSize = 1024;
+
+	private Compression() {}
+
+	/**
+	 * Picks the content coding for the response from the request's Accept-Encoding header, or
+	 * {@code null} to send the body as is.
+	 */
+	@Nullable
+	static String negotiate(@NotNull HttpExchange exchange) {
+		String header = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (header == null || header.isEmpty())
+			return null;
+
+		// an explicit q=0 refuses a coding, even if "*" would accept it
+		float gzip = -1f;
+		float deflate = -1f;
+		float any = 0f;
+
+		for (String part : header.split(",")) {
+			String name = part;
+			float q = 1f;
+
+			int i = part.indexOf(';');
+			if (i >= 0) {
+				name = part.substring(0, i);
+				int j = part.indexOf("q=", i);
+				if (j >= 0) {
+					try {
+						q = Math.max(Float.parseFloat(part.substring(j + 2).trim()), 0f);
+					} catch (Exception e) {
+						q = 0f;
+					}
+				}
+			}
+
+			switch (name.trim().toLowerCase()) {
+				case "gzip", "x-gzip" -> gzip = q;
+				case "deflate" -> deflate = q;
+				case "*" -> any = q;
+			}
+		}
+
+		if (gzip < 0f)
+			gzip = any;
+		if (deflate < 0f)
+			deflate = any;
+
+		if (gzip > 0f && gzip >= deflate)
+			return "gzip";
+		if (deflate > 0f)
+			return "deflate";
+
+		return null;
+	}
+
+	@NotNull
+	static OutputStream wrap(@NotNull OutputStream out, @NotNull String encoding, int level) throws IOException {
+		return switch (encoding) {
+			case "gzip" -> new GZIPOutputStream(out, 8192) {
+				{
+					def.setLevel(level);
+				}
+			};
+			case "deflate" -> new DeflaterOutputStream(out, new Deflater(level), 8192) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						def.end();
+					}
+				}
+			};
+			default -> throw new IOException("Unsupported content encoding: " + encoding);
+		};
+	}
+
+	@NotNull
+	static byte[] compress(@NotNull byte[] data, @NotNull String encoding, int level) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length >> 2, 64));
+		try (OutputStream stream = wrap(out, encoding, level)) {
+			stream.write(data, 0, data.length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Wraps a response body in a stream that undoes its content coding, as named by the
+	 * Content-Encoding header, or null for none.
+	 */
+	@NotNull
+	static InputStream unwrap(@NotNull InputStream in, @Nullable String encoding) throws IOException {
+		if (encoding == null)
+			return in;
+
+		return switch (encoding.trim().toLowerCase()) {
+			case "", "identity" -> in;
+			case "gzip", "x-gzip" -> new GZIPInputStream(in, 8192);
+			case "deflate" -> new InflaterInputStream(in, new Inflater(), 8192) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+			default -> {
+				in.close();
+				throw new IOException("Unsupported content encoding: " + encoding);
+			}
+		};
+	}
+}
@@ -11,19 +11,46 @@ import java.nio.charset.*;
 import java.util.*;
 
 final class DownloaderImpl extends Downloader {
+	// larger announced lengths are not trusted with a single allocation
+	private static final long maxPresize = 64L << 20;
+
+	// what the upstream may compress responses with, unless the extractor asks for something else
+	static final String acceptEncoding = "gzip, deflate";
+
 	private final Proxy proxy;
+	private final String upstream;
+	private final int connectTimeout;
+	private final int readTimeout;
 
-	DownloaderImpl(@Nullable String proxy) {
-		Proxy p = Proxy.NO_PROXY;
+	/**
+	 * @param proxy          the proxy of every request, see {@link #parseProxy}
+	 * @param upstream       base URL of a server standing in for every upstream host, which receives
+	 *                       {@code https://host/path} as {@code <upstream>/host/path}, or null
+	 * @param connectTimeout connect timeout in milliseconds
+	 * @param readTimeout    timeout of every read in milliseconds
+	 */
+	DownloaderImpl(@NotNull Proxy proxy, @Nullable String upstream, int connectTimeout, int readTimeout) {
+		this.proxy = proxy;
+		this.upstream = normalizeUpstream(upstream);
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
 
+	/**
+	 * Parses a proxy URL, warning about and ignoring invalid ones.
+	 */
+	@NotNull
+	static Proxy parseProxy(@Nullable String proxy) {
 		if (proxy != null && !proxy.isEmpty()) {
 			try {
 				URI uri = new URI(proxy);
 				switch (uri.getScheme()) {
-					case "socks4", "socks5" ->
-							p = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(uri.getHost(), uri.getPort()));
-					case "http", "https" ->
-							p = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(uri.getHost(), uri.getPort()));
+					case "socks4", "socks5" -> {
+						return new Proxy(Proxy.Type.SOCKS, new InetSocketAddress(uri.getHost(), uri.getPort()));
+					}
+					case "http", "https" -> {
+						return new Proxy(Proxy.Type.HTTP, new InetSocketAddress(uri.getHost(), uri.getPort()));
+					}
 					default -> Console.warn("Unsupported proxy protocol ignored: " + uri);
 				}
 			} catch (Exception e) {
@@ -31,7 +58,15 @@ final class DownloaderImpl extends Downloader {
 			}
 		}
 
-		this.proxy = p;
+		return Proxy.NO_PROXY;
+	}
+
+	@Nullable
+	static String normalizeUpstream(@Nullable String upstream) {
+		if (upstream == null || upstream.isEmpty())
+			return null;
+
+		return upstream.endsWith("/") ? upstream.substring(0, upstream.length() - 1) : upstream;
 	}
 
 	@Override
@@ -126,54 +161,216 @@ final class DownloaderImpl extends Downloader {
 	private Response sendRequest(@NotNull String url, @NotNull String method,
 	                                          @Nullable Map<String, List<String>> headers,
 	                                          @Nullable byte[] data) throws IOException {
-		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection(this.proxy);
-		connection.setDoInput(true);
-		connection.setDoOutput(true);
-		connection.setUseCaches(false);
-		connection.setReadTimeout(10000);
-		connection.setRequestMethod(method);
-		connection.setConnectTimeout(10000);
-		connection.setInstanceFollowRedirects(true);
+		URL target = new URL(url);
+		Metrics.Upstream metrics = Metrics.instance.upstream(target.getHost());
+		UpstreamEvent event = new UpstreamEvent();
+		event.begin();
+		long start = System.nanoTime();
+		long length = 0L;
+		int status = -1;
 
-		if (headers != null) {
-			for (Map.Entry<String, List<String>> e : headers.entrySet()) {
-				String key = e.getKey();
-				for (String v : e.getValue())
-					connection.addRequestProperty(key, v);
+		try {
+			URL address = upstream == null ? target : new URL(upstream + "/" + target.getAuthority() +
+					target.getFile());
+			HttpURLConnection connection = (HttpURLConnection) address.openConnection(this.proxy);
+			connection.setDoInput(true);
+			connection.setDoOutput(data != null);
+			connection.setUseCaches(false);
+			connection.setReadTimeout(readTimeout);
+			connection.setRequestMethod(method);
+			connection.setConnectTimeout(connectTimeout);
+			connection.setInstanceFollowRedirects(true);
+
+			boolean encoding = false;
+			if (headers != null) {
+				for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+					String key = e.getKey();
+					encoding |= key.equalsIgnoreCase("Accept-Encoding");
+					for (String v : e.getValue())
+						connection.addRequestProperty(key, v);
+				}
+			}
+
+			if (!encoding)
+				connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+
+			if (data != null) {
+				OutputStream out = connection.getOutputStream();
+				out.write(data, 0, data.length);
+				out.flush();
+				out.close();
+			} else connection.connect();
+
+			int code = connection.getResponseCode();
+			InputStream stream = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			String coding = connection.getContentEncoding();
+			CountingInputStream wire = stream == null ? null : new CountingInputStream(stream);
+			String body;
+			try {
+				body = readBody(wire == null ? null : Compression.unwrap(wire, coding), coding == null ?
+						connection.getContentLengthLong() : -1L);
+			} finally {
+				if (wire != null) {
+					metrics.received(wire.count);
+					length = wire.count;
+				}
+			}
+			status = code;
+
+			// the extractor must not see the stand-in's address, nor the coding of a body already decoded
+			return new Response(code, connection.getResponseMessage(), decodedHeaders(connection.getHeaderFields(),
+					coding), body, upstream == null ? connection.getURL().toString() : url);
+		} finally {
+			metrics.end(status, start);
+			RequestTiming.upstream(method, url, status, start, System.nanoTime());
+
+			if (event.shouldCommit()) {
+				event.method = method;
+				event.host = target.getHost();
+				event.status = status;
+				event.bytes = length;
+				event.commit();
 			}
 		}
+	}
+
+	/**
+	 * Returns the response headers without the content coding and length of a body that was decoded.
+	 */
+	@NotNull
+	static Map<String, List<String>> decodedHeaders(@NotNull Map<String, List<String>> headers,
+	                                                @Nullable String coding) {
+		if (coding == null)
+			return headers;
+
+		Map<String, List<String>> result = new LinkedHashMap<>(headers.size() * 2);
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			String name = e.getKey();
+			if (name == null || !(name.equalsIgnoreCase("Content-Encoding") ||
+					name.equalsIgnoreCase("Content-Length")))
+				result.put(name, e.getValue());
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads a response body and decodes it as UTF-8, without copying it more than once on the way.
+	 * A body of known length is read straight into an array of that size; other bodies are read into
+	 * pooled buffers, which small bodies never leave.
+	 *
+	 * @param length the length of the body, or -1 if not known
+	 * @return the body, or null if it is empty
+	 */
+	@Nullable
+	static String readBody(@Nullable InputStream stream, long length) throws IOException {
+		if (stream == null)
+			return null;
 
-		if (data != null) {
-			OutputStream out = connection.getOutputStream();
-			out.write(data, 0, data.length);
-			out.flush();
-			out.close();
-		} else connection.connect();
+		try (stream) {
+			if (length == 0L)
+				return null;
 
-		int status = connection.getResponseCode();
-		data = readBytes(status >= 400 ? connection.getErrorStream() : connection.getInputStream());
+			if (length > 0L && length <= maxPresize) {
+				byte[] data = new byte[(int) length];
+				int read = stream.readNBytes(data, 0, data.length);
 
-		return new Response(status, connection.getResponseMessage(), connection.getHeaderFields(), data.length > 0 ?
-				new String(data, StandardCharsets.UTF_8) : null, connection.getURL().toString());
+				// a body longer than announced is not cut short
+				int b = read < data.length ? -1 : stream.read();
+				if (b < 0)
+					return read > 0 ? new String(data, 0, read, StandardCharsets.UTF_8) : null;
+
+				return readSegments(stream, data, read, b);
+			}
+
+			return readSegments(stream, null, 0, -1);
+		}
 	}
 
-	private static byte[] readBytes(InputStream stream) throws IOException {
-		byte[] buffer = new byte[8192];
-		byte[] outBuf = new byte[0];
+	@Nullable
+	private static String readSegments(InputStream stream, @Nullable byte[] head, int headLength, int next)
+			throws IOException {
+		int size = BufferPool.instance.bufferSize;
+		List<byte[]> segments = new ArrayList<>();
+		byte[] buffer = BufferPool.instance.acquire();
+		int position = 0;
 
-		for (int i = stream.read(buffer, 0, 8192); i >= 0; i = stream.read(buffer, 0, 8192))
-			outBuf = mergeBytes(outBuf, buffer, i);
+		try {
+			if (next >= 0)
+				buffer[position++] = (byte) next;
 
-		stream.close();
-		return outBuf;
+			for (int n; (n = stream.read(buffer, position, size - position)) >= 0; ) {
+				position += n;
+				if (position == size) {
+					segments.add(buffer);
+					buffer = BufferPool.instance.acquire();
+					position = 0;
+				}
+			}
+
+			long total = (long) headLength + (long) segments.size() * size + position;
+			if (total == 0L)
+				return null;
+			if (head == null && segments.isEmpty())
+				return new String(buffer, 0, position, StandardCharsets.UTF_8);
+			if (total > Integer.MAX_VALUE - 8)
+				throw new IOException("Response body too large");
+
+			byte[] data = new byte[(int) total];
+			int offset = 0;
+			if (head != null) {
+				System.arraycopy(head, 0, data, 0, headLength);
+				offset = headLength;
+			}
+
+			for (byte[] segment : segments) {
+				System.arraycopy(segment, 0, data, offset, size);
+				offset += size;
+			}
+
+			System.arraycopy(buffer, 0, data, offset, position);
+			return new String(data, StandardCharsets.UTF_8);
+		} finally {
+			for (byte[] segment : segments)
+				BufferPool.instance.release(segment);
+
+			BufferPool.instance.release(buffer);
+		}
 	}
 
-	private static byte[] mergeBytes(byte[] one, byte[] two, int len) {
-		int baseLength = one.length;
-		byte[] merged = new byte[baseLength + len];
+	/**
+	 * Counts the bytes read through it, the size of a response on the wire before decoding.
+	 */
+	static final class CountingInputStream extends FilterInputStream {
+		long count = 0L;
+
+		CountingInputStream(@NotNull InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0)
+				count++;
 
-		System.arraycopy(one, 0, merged, 0, baseLength);
-		System.arraycopy(two, 0, merged, baseLength, len);
-		return merged;
+			return b;
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0)
+				count += n;
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count += skipped;
+			return skipped;
+		}
 	}
 }
@@ -0,0 +1,135 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.lang.invoke.*;
+import java.nio.*;
+
+final class ETag {
+	private static final VarHandle longView = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle intView = MethodHandles.byteArrayViewVarHandle(int[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	// xxHash64 primes
+	private static final long p1 = 0x9E3779B185EBCA87L;
+	private static final long p2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long p3 = 0x165667B19E3779F9L;
+	private static final long p4 = 0x85EBCA77C2B2AE63L;
+	private static final long p5 = 0x27D4EB2F165667C5L;
+
+	private ETag() {}
+
+	/**
+	 * Formats a strong entity tag for the given body hash. The representation sent with a content
+	 * coding gets its own tag, as its bytes differ from the identity one.
+	 */
+	@NotNull
+	static String format(long hash, @Nullable String encoding) {
+		String hex = Long.toHexString(hash);
+		StringBuilder str = new StringBuilder(20 + (encoding == null ? 0 : encoding.length() + 1)).append('"');
+		for (int i = hex.length(); i < 16; i++)
+			str.append('0');
+
+		str.append(hex);
+		if (encoding != null)
+			str.append('-').append(encoding);
+
+		return str.append('"').toString();
+	}
+
+	/**
+	 * Returns whether the request's If-None-Match header matches the body with the given hash, in any of
+	 * its content codings.
+	 */
+	static boolean matches(@NotNull HttpExchange exchange, long hash) {
+		String header = exchange.getRequestHeaders().getFirst("If-None-Match");
+		if (header == null || header.isEmpty())
+			return false;
+
+		String tag = format(hash, null);
+		for (String part : header.split(",")) {
+			part = part.trim();
+			if (part.equals("*"))
+				return true;
+			if (part.startsWith("W/"))
+				part = part.substring(2);
+
+			// compare the hash part only, i.e. "<hash>" or "<hash>-<coding>"
+			if (part.length() >= 18 && part.regionMatches(0, tag, 0, 17) &&
+					(part.charAt(17) == '"' || part.charAt(17) == '-'))
+				return true;
+		}
+
+		return false;
+	}
+
+	static long hash(@NotNull byte[] data) {
+		return hash(data, 0, data.length, 0L);
+	}
+
+	/**
+	 * Computes the xxHash64 of the given range.
+	 */
+	static long hash(@NotNull byte[] data, int offset, int length, long seed) {
+		final int end = offset + length;
+		long h;
+
+		if (length >= 32) {
+			long v1 = seed + p1 + p2;
+			long v2 = seed + p2;
+			long v3 = seed;
+			long v4 = seed - p1;
+
+			for (int limit = end - 32; offset <= limit; offset += 32) {
+				v1 = round(v1, (long) longView.get(data, offset));
+				v2 = round(v2, (long) longView.get(data, offset + 8));
+				v3 = round(v3, (long) longView.get(data, offset + 16));
+				v4 = round(v4, (long) longView.get(data, offset + 24));
+			}
+
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else h = seed + p5;
+
+		h += length;
+
+		for (; offset + 8 <= end; offset += 8) {
+			h ^= round(0L, (long) longView.get(data, offset));
+			h = Long.rotateLeft(h, 27) * p1 + p4;
+		}
+
+		if (offset + 4 <= end) {
+			h ^= ((int) intView.get(data, offset) & 0xFFFFFFFFL) * p1;
+			h = Long.rotateLeft(h, 23) * p2 + p3;
+			offset += 4;
+		}
+
+		for (; offset < end; offset++) {
+			h ^= (data[offset] & 0xFFL) * p5;
+			h = Long.rotateLeft(h, 11) * p1;
+		}
+
+		h ^= h >>> 33;
+		h *= p2;
+		h ^= h >>> 29;
+		h *= p3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * p2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * p1;
+	}
+
+	private static long merge(long acc, long value) {
+		acc ^= round(0L, value);
+		return acc * p1 + p4;
+	}
+}
@@ -0,0 +1,61 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Starts every exchange right away on its own virtual thread, so that cheap paths and cached results
+ * never wait behind extractions. Only work let through by {@link AdmissionControl} takes one of the
+ * limited worker slots, and it only does so once it has been admitted.
+ */
+abstract class ExchangeExecutor implements Executor {
+	private final ThreadFactory factory = Thread.ofVirtual().name("Exchange-", 0L).factory();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Semaphore workers;
+	private final int maxPending;
+
+	ExchangeExecutor(int concurrency, int maxQueue) {
+		this.workers = new Semaphore(concurrency, true);
+		this.maxPending = concurrency + maxQueue;
+	}
+
+	/**
+	 * Runs admitted work on a worker. The caller holds a worker slot while this runs.
+	 */
+	abstract void work(@NotNull AdmissionControl.Task task) throws IOException;
+
+	/**
+	 * Waits up to the given number of nanoseconds for a worker slot. Returns false if none became free.
+	 */
+	final boolean reserve(long nanos) throws InterruptedException {
+		return workers.tryAcquire(nanos, TimeUnit.NANOSECONDS);
+	}
+
+	final void release() {
+		workers.release();
+	}
+
+	/**
+	 * Returns the number of admitted requests waiting for a worker slot.
+	 */
+	final int queued() {
+		return workers.getQueueLength();
+	}
+
+	@Override
+	public final void execute(@NotNull Runnable command) {
+		// past the limit the exchange may still be answered, but with 503 if it needs an extraction
+		boolean shed = pending.incrementAndGet() > maxPending;
+		Runnable task = AdmissionControl.instance.track(command, shed);
+		factory.newThread(() -> {
+			try {
+				task.run();
+			} finally {
+				pending.decrementAndGet();
+			}
+		}).start();
+	}
+}
@@ -0,0 +1,20 @@
+package com.nettleweb.ytproxy;
+
+import jdk.jfr.*;
+
+@Name("com.nettleweb.ytproxy.Extraction")
+@Label("Extraction")
+@Description("An extractor invocation for a request, or the cache hit that avoided it")
+@Category({"YTProxy", "Extraction"})
+@StackTrace(false)
+final class ExtractionEvent extends Event {
+	@Label("Endpoint")
+	String endpoint;
+
+	@Label("Service ID")
+	int serviceId;
+
+	@Label("Cache Outcome")
+	@Description("\"hit\", \"miss\" or \"coalesced\" with an identical extraction in flight")
+	String outcome;
+}
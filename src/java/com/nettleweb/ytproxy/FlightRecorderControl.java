@@ -0,0 +1,100 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import jdk.jfr.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.text.*;
+import java.time.*;
+
+/**
+ * Flight recordings of a live server: an optional continuous recording kept in a bounded ring, and
+ * one on-demand recording at a time, bounded in duration and size.
+ */
+final class FlightRecorderControl {
+	public static final FlightRecorderControl instance = new FlightRecorderControl();
+
+	static final long maxDuration = 600L;
+	private static final long maxSize = 256L << 20;
+
+	private Recording continuous = null;
+	private Recording recording = null;
+	private Path file = null;
+
+	private FlightRecorderControl() {}
+
+	/**
+	 * Starts the continuous recording, keeping the last 15 minutes or 64 MiB, whichever is smaller.
+	 */
+	synchronized void startContinuous() throws IOException, ParseException {
+		if (continuous != null)
+			return;
+
+		Recording recording = new Recording(Configuration.getConfiguration("default"));
+		recording.setName("ytproxy-continuous");
+		recording.setToDisk(true);
+		recording.setMaxAge(Duration.ofMinutes(15L));
+		recording.setMaxSize(64L << 20);
+		recording.setDumpOnExit(true);
+		recording.start();
+		continuous = recording;
+		Console.log("Flight recording started.");
+	}
+
+	/**
+	 * Starts an on-demand recording with the given settings ("default" or "profile"), stopping by
+	 * itself after the given number of seconds. Returns false if one is already in progress.
+	 */
+	synchronized boolean start(long seconds, @NotNull String settings) throws IOException, ParseException {
+		if (recording != null)
+			return false;
+
+		Path file = Files.createTempFile("ytproxy-", ".jfr");
+		Recording recording = new Recording(Configuration.getConfiguration(settings));
+		recording.setName("ytproxy-admin");
+		recording.setToDisk(true);
+		recording.setMaxSize(maxSize);
+		recording.setDuration(Duration.ofSeconds(Math.min(Math.max(seconds, 1L), maxDuration)));
+		recording.setDestination(file);
+		recording.start();
+
+		this.recording = recording;
+		this.file = file;
+		return true;
+	}
+
+	/**
+	 * Stops the on-demand recording and returns its file, which the caller must delete, or null if
+	 * none was started.
+	 */
+	@Nullable
+	synchronized Path stop() {
+		Recording recording = this.recording;
+		if (recording == null)
+			return null;
+
+		// a recording that reached its duration has already been written
+		if (recording.getState() == RecordingState.RUNNING)
+			recording.stop();
+
+		recording.close();
+		this.recording = null;
+		return file;
+	}
+
+	/**
+	 * Writes the current contents of the continuous recording to a new file, which the caller must
+	 * delete, or returns null if it is not running.
+	 */
+	@Nullable
+	synchronized Path dump() throws IOException {
+		if (continuous == null)
+			return null;
+
+		Path file = Files.createTempFile("ytproxy-", ".jfr");
+		continuous.dump(file);
+		return file;
+	}
+}
@@ -14,37 +14,112 @@ import org.schabi.newpipe.extractor.stream.*;
 import java.io.*;
 import java.net.*;
 import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
 
 final class HTTPHandlerImpl implements HttpHandler {
 	public static final HTTPHandlerImpl instance = new HTTPHandlerImpl();
 
+	// stream URLs expire a few hours after extraction; stop serving them well before that
+	private static final long streamExpiryMargin = 600000L;
+	private static final long streamDefaultTTL = 1800000L;
+
+	static final ResponseCache streamCache = new ResponseCache(64L << 20);
+
+	private static final int batchMaxItems = 50;
+	private static final int batchConcurrency = 8;
+	private static final long batchTimeout = 20000L;
+	private static final ExecutorService batchExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+			.name("BatchWorker-", 0L).factory());
+
+	private static volatile byte[] adminToken = null;
+
+	// answers extractions by key in place of the extractor, for the allocation check's fixtures
+	static volatile Function<String, Object> fixtures = null;
+
 	private HTTPHandlerImpl() {}
 
+	/**
+	 * Enables the /admin endpoints for requests with an "Authorization: Bearer" header of this token.
+	 */
+	static void setAdminToken(@NotNull String token) {
+		adminToken = token.getBytes(StandardCharsets.UTF_8);
+	}
+
 	@Override
 	public void handle(@NotNull HttpExchange exchange) throws IOException {
+		long waited = AdmissionControl.instance.waited();
+		Metrics.Route route = Metrics.instance.route(exchange.getRequestURI().getRawPath());
+		RequestTiming timing = RequestTiming.begin(waited);
+		long start = route.begin();
+		try {
+			dispatch(exchange);
+		} finally {
+			route.end(exchange.getResponseCode(), start);
+			if (waited >= 0L)
+				Metrics.instance.recordQueueWait(timing.queued());
+
+			timing.end(exchange);
+		}
+	}
+
+	private void dispatch(@NotNull HttpExchange exchange) throws IOException {
+		URI uri = exchange.getRequestURI();
 		String method = exchange.getRequestMethod();
+
+		// these change state, so only a POST may trigger them, never a prefetcher or link checker
+		boolean action = uri.getRawPath().equals("/admin/jfr/start") || uri.getRawPath().equals("/admin/jfr/stop");
+		String allow = action ? "Allow=POST, OPTIONS" : "Allow=GET, HEAD, OPTIONS";
 		switch (method) {
-			case "GET":
-			case "HEAD":
-				break;
-			case "OPTIONS":
-				sendResponse(exchange, 200, new String[]{
-						"Allow=GET, HEAD, OPTIONS"
-				}, null);
+			case "GET", "HEAD" -> {
+				if (action) {
+					sendResponse(exchange, 405, new String[]{allow, "Content-Type=text/plain"}, Res.msg405);
+					return;
+				}
+			}
+			case "POST" -> {
+				if (!action) {
+					sendResponse(exchange, 405, new String[]{allow, "Content-Type=text/plain"}, Res.msg405);
+					return;
+				}
+			}
+			case "OPTIONS" -> {
+				sendResponse(exchange, 200, new String[]{allow}, (byte[]) null);
 				return;
-			default:
-				sendResponse(exchange, 405, new String[]{
-						"Allow=GET, HEAD, OPTIONS",
-						"Content-Type=text/plain"
-				}, Res.msg405);
+			}
+			default -> {
+				sendResponse(exchange, 405, new String[]{allow, "Content-Type=text/plain"}, Res.msg405);
 				return;
+			}
 		}
 
-		URI uri = exchange.getRequestURI();
+		long retryAfter = RateLimiter.instance.acquire(exchange, uri.getRawPath());
+		if (retryAfter > 0L) {
+			sendResponse(exchange, 429, new String[]{
+					"Content-Type=text/plain",
+					"Retry-After=" + retryAfter
+			}, Res.msg429);
+			return;
+		}
+
+		// parsed once, for the projection and for the route
+		Map<String, String> params;
+		Projection projection;
+		try {
+			params = getSearchParams(uri.getRawQuery());
+			projection = Projection.parse(params.get("fields"), params.get("thumb"));
+		} catch (IllegalArgumentException e) {
+			sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+			return;
+		}
+
+		ResponseFormat format = ResponseFormat.negotiate(exchange);
 		switch (uri.getRawPath()) {
 			case "/search" -> {
-				Map<String, String> params = getSearchParams(uri.getRawQuery());
 				String platform = params.get("t");
 				String filter = params.get("f");
 				String query = params.get("q");
@@ -62,58 +137,70 @@ final class HTTPHandlerImpl implements HttpHandler {
 					return;
 				}
 
-				try {
-					SearchQueryHandler handler = service.getSearchQHFactory().fromQuery(query,
-							(filter == null || filter.isEmpty()) ? List.of("videos") : List.of(filter.split(",")),
-							(sort == null || sort.isEmpty()) ? "relevance" : sort);
-
-					StringBuilder str = new StringBuilder("{");
-					if (page == null || page.isEmpty()) {
-						SearchInfo info = SearchInfo.getInfo(service, handler);
+				String key = "search:" + service.getServiceId() + ":" + filter + ":" + sort + ":" + query;
+				if (page != null && !page.isEmpty()) {
+					ResponseCache.Entry entry = Prefetcher.instance.take(key, page, format, projection);
+					if (entry != null) {
+						cacheHit(uri.getRawPath(), service);
+						sendResponse(exchange, 200, new String[]{"Content-Type=" + format.contentType}, entry);
+						return;
+					}
+				}
 
-						// basic info
-						str.append("\"id\":").append(encodeJSON(info.getId()));
-						str.append(",\"url\":").append(encodeJSON(info.getUrl()));
-						str.append(",\"name\":").append(encodeJSON(info.getName()));
-						str.append(",\"sort\":").append(encodeJSON(info.getSortFilter()));
-						str.append(",\"query\":").append(encodeJSON(info.getSearchString()));
-						str.append(",\"service\":").append(info.getServiceId());
-						str.append(",\"corrected\":").append(info.isCorrectedSearch());
-						str.append(",\"suggestion\":").append(encodeJSON(info.getSearchSuggestion()));
-						str.append(",\"nextPageToken\":").append(info.hasNextPage() ?
-								encodeJSON(encodePage(info.getNextPage())) : "null");
-
-						// items
-						encodeItems(str, info.getRelatedItems());
-					} else {
-						Page p = decodePage(page);
-						if (p == null) {
-							sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
-							return;
+				admit(exchange, "search", () -> {
+					try (ResponseWriter out = format.newWriter(exchange, projection)) {
+						SearchQueryHandler handler = service.getSearchQHFactory().fromQuery(query,
+								(filter == null || filter.isEmpty()) ? List.of("videos") : List.of(filter.split(",")),
+								(sort == null || sort.isEmpty()) ? "relevance" : sort);
+						Prefetcher.Fetcher fetcher = p -> SearchInfo.getMoreItems(service, handler, p);
+
+						if (page == null || page.isEmpty()) {
+							SearchInfo info = extract("/search", service, key, () -> SearchInfo.getInfo(service, handler));
+							String token = info.hasNextPage() ? encodePage(info.getNextPage()) : null;
+							if (token != null)
+								Prefetcher.instance.prefetch(key, token, info.getNextPage(), fetcher, format,
+										projection);
+
+							// basic info
+							out.beginObject();
+							out.name("id").value(info.getId());
+							out.name("url").value(info.getUrl());
+							out.name("name").value(info.getName());
+							out.name("sort").value(info.getSortFilter());
+							out.name("query").value(info.getSearchString());
+							out.name("service").value(info.getServiceId());
+							out.name("corrected").value(info.isCorrectedSearch());
+							out.name("suggestion").value(info.getSearchSuggestion());
+							out.name("nextPageToken").value(token);
+
+							// items
+							encodeItems(out, info.getRelatedItems());
+							out.endObject();
+						} else {
+							Page p = decodePage(page);
+							if (p == null) {
+								sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+								return;
+							}
+
+							ListExtractor.InfoItemsPage<InfoItem> info = extract("/search", service, key + ":" + page,
+									() -> SearchInfo.getMoreItems(service, handler, p));
+							String token = info.hasNextPage() ? encodePage(info.getNextPage()) : null;
+							if (token != null)
+								Prefetcher.instance.prefetch(key, token, info.getNextPage(), fetcher, format,
+										projection);
+
+							encodeItemsPage(out, info, token);
 						}
 
-						ListExtractor.InfoItemsPage<InfoItem> info = SearchInfo.getMoreItems(service, handler, p);
-
-						// next page token
-						str.append("\"nextPageToken\":").append(info.hasNextPage() ?
-								encodeJSON(encodePage(info.getNextPage())) : "null");
-
-						// items
-						encodeItems(str, info.getItems());
+						sendResponse(exchange, 200, out);
+					} catch (Exception e) {
+						Console.error("Failed to parse search info: ", e);
+						sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
 					}
-
-					byte[] data = str.append("}").toString().getBytes(StandardCharsets.UTF_8);
-					sendResponse(exchange, 200, new String[]{
-							"Content-Type=application/json",
-							"Content-Length=" + data.length
-					}, data);
-				} catch (Exception e) {
-					Console.error("Failed to parse search info: ", e);
-					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
-				}
+				});
 			}
 			case "/stream" -> {
-				Map<String, String> params = getSearchParams(uri.getRawQuery());
 				String svc = params.get("t");
 				String url = params.get("u");
 
@@ -128,125 +215,36 @@ final class HTTPHandlerImpl implements HttpHandler {
 					return;
 				}
 
+				ResponseCache.Entry cached;
 				try {
-					StreamInfo info = StreamInfo.getInfo(service, url);
-					StringBuilder str = new StringBuilder("{");
-
-					// basic info
-					str.append("\"id\":").append(encodeJSON(info.getId()));
-					str.append(",\"url\":").append(encodeJSON(info.getUrl()));
-					str.append(",\"name\":").append(encodeJSON(info.getName()));
-					str.append(",\"host\":").append(encodeJSON(info.getHost()));
-					str.append(",\"short\":").append(info.isShortFormContent());
-					str.append(",\"service\":").append(info.getServiceId());
-					str.append(",\"license\":").append(encodeJSON(info.getLicence()));
-					str.append(",\"category\":").append(encodeJSON(info.getCategory()));
-					str.append(",\"duration\":").append(info.getDuration());
-					str.append(",\"ageLimit\":").append(info.getAgeLimit());
-					str.append(",\"viewCount\":").append(info.getViewCount());
-					str.append(",\"likeCount\":").append(info.getLikeCount());
-					str.append(",\"uploadDate\":").append(encodeJSON(info.getTextualUploadDate()));
-					str.append(",\"description\":").append(encodeJSON(info.getDescription().getContent()));
-
-					// tags
-					str.append(",\"tags\":[ ");
-					for (String tag : info.getTags())
-						str.append(encodeJSON(tag)).append(",");
-					str.deleteCharAt(str.length() - 1).append("]");
-
-					// stream
-					str.append(",\"stream\":").append(switch (info.getStreamType()) {
-						case NONE -> "\"none\"";
-						case LIVE_STREAM -> "\"live\"";
-						case AUDIO_STREAM -> "\"audio\"";
-						case VIDEO_STREAM -> "\"video\"";
-						case POST_LIVE_STREAM -> "\"post_live\"";
-						case AUDIO_LIVE_STREAM -> "\"audio_live\"";
-						case POST_LIVE_AUDIO_STREAM -> "\"post_live_audio\"";
-					});
-
-					// privacy
-					str.append(",\"privacy\":").append(switch (info.getPrivacy()) {
-						case OTHER -> "\"other\"";
-						case PUBLIC -> "\"public\"";
-						case PRIVATE -> "\"private\"";
-						case INTERNAL -> "\"internal\"";
-						case UNLISTED -> "\"unlisted\"";
-					});
-
-					// uploader
-					str.append(",\"uploader\":{\"url\":").append(encodeJSON(info.getUploaderUrl()))
-							.append(",\"name\":").append(encodeJSON(info.getUploaderName()))
-							.append(",\"verified\":").append(info.isUploaderVerified())
-							.append(",\"subscribers\":").append(info.getUploaderSubscriberCount())
-							.append("}");
-
-					// subchannel
-					str.append(",\"subchannel\":{\"url\":").append(encodeJSON(info.getSubChannelUrl()))
-							.append(",\"name\":").append(encodeJSON(info.getSubChannelName()))
-							.append("}");
-
-					// thumbnails
-					str.append(",\"thumbnails\":");
-					encodeImages(str, info.getThumbnails());
-
-					// audio streams
-					str.append(",\"audioStreams\":[ ");
-					for (AudioStream stream : info.getAudioStreams()) {
-						str.append("{\"id\":").append(encodeJSON(stream.getId()))
-								.append(",\"url\":").append(encodeJSON(stream.getContent()))
-								.append(",\"codec\":").append(encodeJSON(stream.getCodec()))
-								.append(",\"quality\":").append(encodeJSON(stream.getQuality()))
-								.append(",\"bitrate\":").append(stream.getBitrate())
-								.append("},");
-					}
-					str.deleteCharAt(str.length() - 1).append("]");
-
-					// video streams
-					str.append(",\"videoStreams\":[ ");
-					for (VideoStream stream : info.getVideoStreams()) {
-						str.append("{\"id\":").append(encodeJSON(stream.getId()))
-								.append(",\"url\":").append(encodeJSON(stream.getContent()))
-								.append(",\"fps\":").append(stream.getFps())
-								.append(",\"codec\":").append(encodeJSON(stream.getCodec()))
-								.append(",\"width\":").append(stream.getWidth())
-								.append(",\"height\":").append(stream.getHeight())
-								.append(",\"bitrate\":").append(stream.getBitrate())
-								.append(",\"quality\":").append(encodeJSON(stream.getQuality()))
-								.append("},");
-					}
-					str.deleteCharAt(str.length() - 1).append("]");
-
-					// related items
-					str.append(",\"relatedItems\":[ ");
-					for (InfoItem item : info.getRelatedItems()) {
-						if (item instanceof StreamInfoItem)
-							encodeStreamInfoItem(str, (StreamInfoItem) item);
-						else if (item instanceof ChannelInfoItem)
-							encodeChannelInfoItem(str, (ChannelInfoItem) item);
-						else if (item instanceof PlaylistInfoItem)
-							encodePlaylistInfoItem(str, (PlaylistInfoItem) item);
-						else
-							encodeInfoItem(str, item);
-					}
-					str.deleteCharAt(str.length() - 1).append("]");
-
-					byte[] data = str.append("}").toString().getBytes(StandardCharsets.UTF_8);
-					sendResponse(exchange, 200, new String[]{
-							"Content-Type=application/json",
-							"Content-Length=" + data.length
-					}, data);
+					cached = streamCache.get(getVariantKey(getStreamKey(service, url), format, projection));
 				} catch (Exception e) {
 					Console.error("Failed to parse video stream info: ", e);
 					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					return;
+				}
+
+				if (cached != null) {
+					cacheHit("/stream", service);
+					sendResponse(exchange, 200, new String[]{"Content-Type=" + format.contentType}, cached);
+					return;
 				}
+
+				admit(exchange, "stream", () -> {
+					try {
+						ResponseCache.Entry entry = getStreamEntry("/stream", service, url, format, projection);
+						sendResponse(exchange, 200, new String[]{"Content-Type=" + format.contentType}, entry);
+					} catch (Exception e) {
+						Console.error("Failed to parse video stream info: ", e);
+						sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					}
+				});
 			}
-			case "/channel" -> {
-				Map<String, String> params = getSearchParams(uri.getRawQuery());
+			case "/streams" -> {
 				String svc = params.get("t");
-				String url = params.get("u");
+				List<String> urls = getSearchParamValues(uri.getRawQuery(), "u");
 
-				if (url == null || url.isEmpty()) {
+				if (urls.isEmpty() || urls.size() > batchMaxItems) {
 					sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
 					return;
 				}
@@ -257,54 +255,75 @@ final class HTTPHandlerImpl implements HttpHandler {
 					return;
 				}
 
-				try {
-					ChannelInfo info = ChannelInfo.getInfo(service, url);
-					StringBuilder str = new StringBuilder("{");
-
-					// basic info
-					str.append("\"id\":").append(encodeJSON(info.getId()));
-					str.append(",\"url\":").append(encodeJSON(info.getUrl()));
-					str.append(",\"name\":").append(encodeJSON(info.getName()));
-					str.append(",\"feed\":").append(encodeJSON(info.getFeedUrl()));
-					str.append(",\"service\":").append(info.getServiceId());
-					str.append(",\"verified\":").append(info.isVerified());
-					str.append(",\"subscribers\":").append(info.getSubscriberCount());
-					str.append(",\"description\":").append(encodeJSON(info.getDescription()));
-
-					// tags
-					str.append(",\"tags\":[ ");
-					for (String tag : info.getTags())
-						str.append(encodeJSON(tag)).append(",");
-					str.deleteCharAt(str.length() - 1).append("]");
-
-					// avatars
-					str.append(",\"avatars\":");
-					encodeImages(str, info.getAvatars());
-
-					// banners
-					str.append(",\"banners\":");
-					encodeImages(str, info.getBanners());
-
-					// parent channel
-					str.append(",\"parentChannel\":{\"url\":").append(encodeJSON(info.getParentChannelUrl()))
-							.append(",\"name\":").append(encodeJSON(info.getParentChannelName()))
-							.append("}");
-
-					byte[] data = str.append("}").toString().getBytes(StandardCharsets.UTF_8);
-					sendResponse(exchange, 200, new String[]{
-							"Content-Type=application/json",
-							"Content-Length=" + data.length
-					}, data);
-				} catch (Exception e) {
-					Console.error("Failed to parse channel info: ", e);
-					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
-				}
+				admit(exchange, "streams", () -> {
+					// fan out, at most batchConcurrency extractions of this batch at a time
+					Semaphore permits = new Semaphore(batchConcurrency);
+					RequestTiming timing = RequestTiming.current();
+					long deadline = System.currentTimeMillis() + batchTimeout;
+					List<Future<ResponseCache.Entry>> futures = new ArrayList<>(urls.size());
+					for (String url : urls) {
+						futures.add(batchExecutor.submit(() -> {
+							permits.acquire();
+							try {
+								// the batch may have been answered while this one waited for a permit
+								if (Thread.interrupted() || System.currentTimeMillis() >= deadline)
+									throw new TimeoutException("Timed out");
+
+								RequestTiming.attach(timing);
+								return getStreamEntry("/streams", service, url, format, projection);
+							} finally {
+								RequestTiming.attach(null);
+								permits.release();
+							}
+						}));
+					}
+
+					// the projection applies to each stream, as with /stream, not to the batch around them
+					try (ResponseWriter out = format.newWriter(exchange, null)) {
+						out.beginObject();
+						out.name("results").beginArray();
+
+						for (int i = 0; i < urls.size(); i++) {
+							Future<ResponseCache.Entry> future = futures.get(i);
+							out.beginObject();
+							out.name("url").value(urls.get(i));
+
+							long waitStart = System.nanoTime();
+							try {
+								ResponseCache.Entry entry = future.get(Math.max(deadline - System.currentTimeMillis(), 0L),
+										TimeUnit.MILLISECONDS);
+								out.name("stream").rawValue(entry.data);
+							} catch (TimeoutException e) {
+								// nobody waits for it anymore, stop it instead of extracting for nothing
+								future.cancel(true);
+								out.name("error").value("Timed out");
+							} catch (ExecutionException e) {
+								Throwable cause = e.getCause();
+								out.name("error").value(cause.getMessage() == null ? cause.getClass().getSimpleName() :
+										cause.getMessage());
+							} finally {
+								// the extractions are timed by the batch workers, not as encoding
+								RequestTiming.blocked(System.nanoTime() - waitStart);
+							}
+
+							out.endObject();
+						}
+
+						out.endArray();
+						out.endObject();
+						sendResponse(exchange, 200, out);
+					} catch (Exception e) {
+						for (Future<ResponseCache.Entry> future : futures)
+							future.cancel(true);
+
+						Console.error("Failed to parse video stream info: ", e);
+						sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					}
+				});
 			}
-			case "/playlist" -> {
-				Map<String, String> params = getSearchParams(uri.getRawQuery());
+			case "/channel" -> {
 				String svc = params.get("t");
 				String url = params.get("u");
-				String page = params.get("p");
 
 				if (url == null || url.isEmpty()) {
 					sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
@@ -317,81 +336,155 @@ final class HTTPHandlerImpl implements HttpHandler {
 					return;
 				}
 
-				try {
-					StringBuilder str = new StringBuilder("{");
-					if (page == null || page.isEmpty()) {
-						PlaylistInfo info = PlaylistInfo.getInfo(service, url);
+				admit(exchange, "channel", () -> {
+					// buffered whole, never chunked, so that polling clients always get an ETag
+					try (ResponseWriter out = format.newWriter(null, projection)) {
+						ChannelInfo info = extract("/channel", service, "channel:" + service.getServiceId() + ":" + url,
+								() -> ChannelInfo.getInfo(service, url));
 
 						// basic info
-						str.append("\"id\":").append(encodeJSON(info.getId()));
-						str.append(",\"url\":").append(encodeJSON(info.getUrl()));
-						str.append(",\"name\":").append(encodeJSON(info.getName()));
-						str.append(",\"sort\":").append(encodeJSON(info.getSortFilter()));
-						str.append(",\"streams\":").append(info.getStreamCount());
-						str.append(",\"service\":").append(info.getServiceId());
-						str.append(",\"description\":").append(encodeJSON(info.getDescription().getContent()));
-						str.append(",\"nextPageToken\":").append(info.hasNextPage() ?
-								encodeJSON(encodePage(info.getNextPage())) : "null");
-
-						// playlist
-						str.append(",\"playlist\":").append(switch (info.getPlaylistType()) {
-							case NORMAL -> "\"normal\"";
-							case MIX_GENRE -> "\"mix_genre\"";
-							case MIX_MUSIC -> "\"mix_music\"";
-							case MIX_STREAM -> "\"mix_stream\"";
-							case MIX_CHANNEL -> "\"mix_channel\"";
-						});
+						out.beginObject();
+						out.name("id").value(info.getId());
+						out.name("url").value(info.getUrl());
+						out.name("name").value(info.getName());
+						out.name("feed").value(info.getFeedUrl());
+						out.name("service").value(info.getServiceId());
+						out.name("verified").value(info.isVerified());
+						out.name("subscribers").value(info.getSubscriberCount());
+						out.name("description").value(info.getDescription());
+
+						// tags
+						out.name("tags").beginArray();
+						for (String tag : info.getTags())
+							out.value(tag);
+						out.endArray();
+
+						// avatars
+						encodeImages(out, "avatars", info.getAvatars());
 
 						// banners
-						str.append(",\"banners\":");
-						encodeImages(str, info.getBanners());
-
-						// uploader
-						str.append(",\"uploader\":{\"url\":").append(encodeJSON(info.getUploaderUrl()))
-								.append(",\"name\":").append(encodeJSON(info.getUploaderName()))
-								.append("}");
-
-						// subchannel
-						str.append(",\"subchannel\":{\"url\":").append(encodeJSON(info.getSubChannelUrl()))
-								.append(",\"name\":").append(encodeJSON(info.getSubChannelName()))
-								.append("}");
-
-						// thumbnails
-						str.append(",\"thumbnails\":");
-						encodeImages(str, info.getThumbnails());
-
-						// related items
-						encodeItems(str, info.getRelatedItems());
-					} else {
-						Page p = decodePage(page);
-						if (p == null) {
-							sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
-							return;
-						}
+						encodeImages(out, "banners", info.getBanners());
+
+						// parent channel
+						out.name("parentChannel").beginObject()
+								.name("url").value(info.getParentChannelUrl())
+								.name("name").value(info.getParentChannelName())
+								.endObject();
+
+						out.endObject();
+						sendResponse(exchange, 200, out);
+					} catch (Exception e) {
+						Console.error("Failed to parse channel info: ", e);
+						sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					}
+				});
+			}
+			case "/playlist" -> {
+				String svc = params.get("t");
+				String url = params.get("u");
+				String page = params.get("p");
 
-						ListExtractor.InfoItemsPage<StreamInfoItem> info = PlaylistInfo.getMoreItems(service, url, p);
+				if (url == null || url.isEmpty()) {
+					sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+					return;
+				}
 
-						// next page token
-						str.append("\"nextPageToken\":").append(info.hasNextPage() ?
-								encodeJSON(encodePage(info.getNextPage())) : "null");
+				StreamingService service = getServiceById(svc);
+				if (service == null) {
+					sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+					return;
+				}
 
-						// items
-						encodeItems(str, info.getItems());
+				String key = "playlist:" + service.getServiceId() + ":" + url;
+				if (page != null && !page.isEmpty()) {
+					ResponseCache.Entry entry = Prefetcher.instance.take(key, page, format, projection);
+					if (entry != null) {
+						cacheHit(uri.getRawPath(), service);
+						sendResponse(exchange, 200, new String[]{"Content-Type=" + format.contentType}, entry);
+						return;
 					}
-
-					byte[] data = str.append("}").toString().getBytes(StandardCharsets.UTF_8);
-					sendResponse(exchange, 200, new String[]{
-							"Content-Type=application/json",
-							"Content-Length=" + data.length
-					}, data);
-				} catch (Exception e) {
-					Console.error("Failed to parse playlist info: ", e);
-					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
 				}
+
+				admit(exchange, "playlist", () -> {
+					// buffered whole, see /channel
+					try (ResponseWriter out = format.newWriter(null, projection)) {
+						Prefetcher.Fetcher fetcher = p -> PlaylistInfo.getMoreItems(service, url, p);
+
+						if (page == null || page.isEmpty()) {
+							PlaylistInfo info = extract("/playlist", service, key, () -> PlaylistInfo.getInfo(service, url));
+							String token = info.hasNextPage() ? encodePage(info.getNextPage()) : null;
+							if (token != null)
+								Prefetcher.instance.prefetch(key, token, info.getNextPage(), fetcher, format,
+										projection);
+
+							// basic info
+							out.beginObject();
+							out.name("id").value(info.getId());
+							out.name("url").value(info.getUrl());
+							out.name("name").value(info.getName());
+							out.name("sort").value(info.getSortFilter());
+							out.name("streams").value(info.getStreamCount());
+							out.name("service").value(info.getServiceId());
+							out.name("description").value(info.getDescription().getContent());
+							out.name("nextPageToken").value(token);
+
+							// playlist
+							out.name("playlist").value(switch (info.getPlaylistType()) {
+								case NORMAL -> "normal";
+								case MIX_GENRE -> "mix_genre";
+								case MIX_MUSIC -> "mix_music";
+								case MIX_STREAM -> "mix_stream";
+								case MIX_CHANNEL -> "mix_channel";
+							});
+
+							// banners
+							encodeImages(out, "banners", info.getBanners());
+
+							// uploader
+							out.name("uploader").beginObject()
+									.name("url").value(info.getUploaderUrl())
+									.name("name").value(info.getUploaderName())
+									.endObject();
+
+							// subchannel
+							out.name("subchannel").beginObject()
+									.name("url").value(info.getSubChannelUrl())
+									.name("name").value(info.getSubChannelName())
+									.endObject();
+
+							// thumbnails
+							encodeImages(out, "thumbnails", info.getThumbnails());
+
+							// related items
+							encodeItems(out, info.getRelatedItems());
+							out.endObject();
+						} else {
+							Page p = decodePage(page);
+							if (p == null) {
+								sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+								return;
+							}
+
+							ListExtractor.InfoItemsPage<StreamInfoItem> info = extract("/playlist", service, key + ":" + page,
+									() -> PlaylistInfo.getMoreItems(service, url, p));
+							String token = info.hasNextPage() ? encodePage(info.getNextPage()) : null;
+							if (token != null)
+								Prefetcher.instance.prefetch(key, token, info.getNextPage(), fetcher, format,
+										projection);
+
+							encodeItemsPage(out, info, token);
+						}
+
+						sendResponse(exchange, 200, out);
+					} catch (Exception e) {
+						Console.error("Failed to parse playlist info: ", e);
+						sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					}
+				});
 			}
 			case "/trending" -> {
-				Map<String, String> params = getSearchParams(uri.getRawQuery());
 				String svc = params.get("t");
+				String kiosk = params.get("k");
 				String page = params.get("p");
 
 				StreamingService service = getServiceById(svc);
@@ -400,52 +493,155 @@ final class HTTPHandlerImpl implements HttpHandler {
 					return;
 				}
 
+				KioskList kiosks;
+				String kioskId;
 				try {
-					KioskExtractor<?> extractor = service.getKioskList().getDefaultKioskExtractor();
-					StringBuilder str = new StringBuilder("{");
-
-					extractor.fetchPage();
+					kiosks = service.getKioskList();
+					kioskId = (kiosk == null || kiosk.isEmpty()) ? kiosks.getDefaultKioskId() : kiosk;
+					if (!kiosks.getAvailableKiosks().contains(kioskId)) {
+						sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+						return;
+					}
+				} catch (Exception e) {
+					Console.error("Failed to parse trending info: ", e);
+					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					return;
+				}
 
-					if (page == null || page.isEmpty()) {
-						KioskInfo info = KioskInfo.getInfo(extractor);
+				// served from the background refreshed snapshot whenever possible
+				ResponseCache.Entry entry = format == ResponseFormat.JSON && projection == null ?
+						KioskRefresher.instance.get(service.getServiceId(), kioskId, page) : null;
+				if (entry != null) {
+					cacheHit("/trending", service);
+					sendResponse(exchange, 200, new String[]{"Content-Type=" + format.contentType}, entry);
+					return;
+				}
 
-						// basic info
-						str.append("\"id\":").append(encodeJSON(info.getId()));
-						str.append(",\"url\":").append(encodeJSON(info.getUrl()));
-						str.append(",\"name\":").append(encodeJSON(info.getName()));
-						str.append(",\"sort\":").append(encodeJSON(info.getSortFilter()));
-						str.append(",\"service\":").append(info.getServiceId());
-						str.append(",\"nextPageToken\":").append(info.hasNextPage() ?
-								encodeJSON(encodePage(info.getNextPage())) : "null");
-
-						// items
-						encodeItems(str, info.getRelatedItems());
-					} else {
-						Page p = decodePage(page);
-						if (p == null) {
-							sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
-							return;
+				admit(exchange, "trending", () -> {
+					// buffered whole, see /channel
+					try (ResponseWriter out = format.newWriter(null, projection)) {
+						if (page == null || page.isEmpty()) {
+							KioskInfo info = extract("/trending", service, "kiosk:" + service.getServiceId() + ":" + kioskId,
+									() -> {
+								KioskExtractor<?> extractor = kiosks.getExtractorById(kioskId, null);
+								extractor.fetchPage();
+								return KioskInfo.getInfo(extractor);
+							});
+
+							encodeKioskInfo(out, info, info.hasNextPage() ? encodePage(info.getNextPage()) : null);
+						} else {
+							Page p = decodePage(page);
+							if (p == null) {
+								sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+								return;
+							}
+
+							ListExtractor.InfoItemsPage<?> info = extract("/trending", service, "kiosk:" +
+									service.getServiceId() + ":" + kioskId + ":" + page, () -> {
+								KioskExtractor<?> extractor = kiosks.getExtractorById(kioskId, null);
+								extractor.fetchPage();
+								return extractor.getPage(p);
+							});
+
+							encodeItemsPage(out, info, info.hasNextPage() ? encodePage(info.getNextPage()) : null);
 						}
 
-						ListExtractor.InfoItemsPage<?> info = extractor.getPage(p);
+						sendResponse(exchange, 200, out);
+					} catch (Exception e) {
+						Console.error("Failed to parse trending info: ", e);
+						sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					}
+				});
+			}
+			case "/stats" -> {
+				ResponseWriter out = format.newWriter(exchange, projection);
+				out.beginObject();
+				out.name("singleFlight").beginObject()
+						.name("executed").value(SingleFlight.instance.executed())
+						.name("coalesced").value(SingleFlight.instance.coalesced())
+						.name("inFlight").value(SingleFlight.instance.inFlight())
+						.endObject();
+				out.name("prefetch").beginObject()
+						.name("started").value(Prefetcher.instance.started())
+						.name("skipped").value(Prefetcher.instance.skipped())
+						.name("failed").value(Prefetcher.instance.failed())
+						.name("hits").value(Prefetcher.instance.hits())
+						.name("wasted").value(Prefetcher.instance.wasted())
+						.endObject();
+				out.name("admission").beginObject()
+						.name("queued").value(AdmissionControl.instance.queued())
+						.name("rejected").value(AdmissionControl.instance.rejected())
+						.name("expired").value(AdmissionControl.instance.expired())
+						.name("shed").value(AdmissionControl.instance.shed())
+						.endObject();
+				out.name("rateLimit").beginObject()
+						.name("limited").value(RateLimiter.instance.limited())
+						.name("clients").value(RateLimiter.instance.clients())
+						.endObject();
+
+				out.endObject();
+				sendResponse(exchange, 200, out);
+			}
+			case "/metrics" -> sendResponse(exchange, 200, new String[]{
+					"Content-Type=text/plain; version=0.0.4; charset=utf-8"
+			}, Metrics.instance.render());
+			case "/admin/jfr/start" -> {
+				if (!authorize(exchange))
+					return;
+
+				String duration = params.get("d");
+				String settings = params.get("s");
+
+				long seconds;
+				try {
+					seconds = duration == null || duration.isEmpty() ? 60L : Long.parseLong(duration);
+				} catch (NumberFormatException e) {
+					seconds = -1L;
+				}
 
-						// next page token
-						str.append("\"nextPageToken\":").append(info.hasNextPage() ?
-								encodeJSON(encodePage(info.getNextPage())) : "null");
+				if (seconds <= 0L || (settings != null && !settings.equals("default") && !settings.equals("profile"))) {
+					sendResponse(exchange, 400, new String[]{"Content-Type=text/plain"}, Res.msg400);
+					return;
+				}
 
-						// items
-						encodeItems(str, info.getItems());
+				seconds = Math.min(seconds, FlightRecorderControl.maxDuration);
+				try {
+					if (!FlightRecorderControl.instance.start(seconds, settings == null ? "default" : settings)) {
+						sendResponse(exchange, 409, new String[]{"Content-Type=text/plain"}, Res.msg409);
+						return;
 					}
+				} catch (Exception e) {
+					Console.error("Failed to start flight recording: ", e);
+					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					return;
+				}
+
+				ResponseWriter out = format.newWriter(exchange, projection);
+				out.beginObject();
+				out.name("duration").value(seconds);
+				out.endObject();
+				sendResponse(exchange, 200, out);
+			}
+			case "/admin/jfr/stop", "/admin/jfr/dump" -> {
+				if (!authorize(exchange))
+					return;
 
-					byte[] data = str.append("}").toString().getBytes(StandardCharsets.UTF_8);
-					sendResponse(exchange, 200, new String[]{
-							"Content-Type=application/json",
-							"Content-Length=" + data.length
-					}, data);
+				Path file;
+				try {
+					file = uri.getRawPath().endsWith("/stop") ? FlightRecorderControl.instance.stop() :
+							FlightRecorderControl.instance.dump();
 				} catch (Exception e) {
-					Console.error("Failed to parse trending info: ", e);
+					Console.error("Failed to write flight recording: ", e);
 					sendResponse(exchange, 500, new String[]{"Content-Type=text/plain"}, Res.msg500);
+					return;
 				}
+
+				if (file == null) {
+					sendResponse(exchange, 409, new String[]{"Content-Type=text/plain"}, Res.msg409);
+					return;
+				}
+
+				sendFile(exchange, file, "ytproxy.jfr");
 			}
 			case "/robots.txt" -> sendResponse(exchange, 200, new String[]{"Content-Type=text/plain"}, Res.robots_txt);
 			case "/favicon.ico" ->
@@ -454,191 +650,592 @@ final class HTTPHandlerImpl implements HttpHandler {
 		}
 	}
 
-	private static String encodeJSON(@Nullable String str) {
-		if (str == null)
-			return "null";
-
-		StringBuilder builder = new StringBuilder("\"");
-		for (char ch : str.toCharArray()) {
-			switch (ch) {
-				case '\"':
-					builder.append("\\\"");
-					break;
-				case '\\':
-					builder.append("\\\\");
-					break;
-				case '\b':
-					builder.append("\\b");
-					break;
-				case '\f':
-					builder.append("\\f");
-					break;
-				case '\n':
-					builder.append("\\n");
-					break;
-				case '\r':
-					builder.append("\\r");
-					break;
-				case '\t':
-					builder.append("\\t");
-					break;
-				default:
-					if (ch < 0x20) {
-						String code = Integer.toString(ch, 16);
-						code = switch (code.length()) {
-							case 0 -> "0000";
-							case 1 -> "000" + code;
-							case 2 -> "00" + code;
-							case 3 -> "0" + code;
-							default -> code;
-						};
-						builder.append("\\u").append(code);
-					} else builder.append(ch);
-					break;
+	/**
+	 * Returns the encoded stream info, from the cache if possible. Each format and projection is cached
+	 * separately.
+	 */
+	@NotNull
+	private static ResponseCache.Entry getStreamEntry(@NotNull String endpoint, @NotNull StreamingService service,
+	                                                  @NotNull String url, @NotNull ResponseFormat format,
+	                                                  @Nullable Projection projection) throws Exception {
+		String key = getStreamKey(service, url);
+		String cacheKey = getVariantKey(key, format, projection);
+		ResponseCache.Entry entry = streamCache.get(cacheKey);
+		if (entry != null) {
+			cacheHit(endpoint, service);
+			return entry;
+		}
+
+		StreamInfo info = extract(endpoint, service, "stream:" + key, () -> StreamInfo.getInfo(service, url));
+
+		ResponseWriter out = format.newWriter(null, projection);
+		encodeStreamInfo(out, info);
+		return streamCache.put(cacheKey, out.toByteArray(), getStreamExpiry(info));
+	}
+
+	/**
+	 * Runs an extraction, sharing it with identical ones in flight, recorded as an
+	 * {@link ExtractionEvent}.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> T extract(@NotNull String endpoint, @NotNull StreamingService service, @NotNull String key,
+	                             @NotNull Callable<T> call) throws Exception {
+		ExtractionEvent event = new ExtractionEvent();
+		event.begin();
+
+		boolean[] executed = {false};
+		Function<String, Object> fixtures = HTTPHandlerImpl.fixtures;
+		try {
+			return SingleFlight.instance.run(key, () -> {
+				executed[0] = true;
+				return fixtures == null ? call.call() : (T) fixtures.apply(key);
+			});
+		} finally {
+			if (event.shouldCommit()) {
+				event.endpoint = endpoint;
+				event.serviceId = service.getServiceId();
+				event.outcome = executed[0] ? "miss" : "coalesced";
+				event.commit();
 			}
 		}
+	}
+
+	/**
+	 * Records a response served without an extraction.
+	 */
+	private static void cacheHit(@NotNull String endpoint, @NotNull StreamingService service) {
+		ExtractionEvent event = new ExtractionEvent();
+		if (event.shouldCommit()) {
+			event.endpoint = endpoint;
+			event.serviceId = service.getServiceId();
+			event.outcome = "hit";
+			event.commit();
+		}
+	}
 
-		return builder.append("\"").toString();
+	@NotNull
+	private static String getStreamKey(@NotNull StreamingService service, @NotNull String url) throws Exception {
+		return service.getServiceId() + ":" + service.getStreamLHFactory().getId(url);
 	}
 
-	private static String encodePage(Page page) {
-		try (ByteArrayOutputStream str1 = new ByteArrayOutputStream(); ObjectOutputStream str2 =
-				new ObjectOutputStream(str1)) {
+	/**
+	 * Returns the cache key of an encoded response, which differs between formats and projections.
+	 */
+	@NotNull
+	static String getVariantKey(@NotNull String key, @NotNull ResponseFormat format, @Nullable Projection projection) {
+		if (format == ResponseFormat.JSON)
+			return projection == null ? key : key + "|" + projection.key();
 
-			str2.writeObject(page);
-			str2.flush();
-			return Base64.getEncoder().encodeToString(str1.toByteArray());
-		} catch (Exception e) {
-			throw new RuntimeException("Failed to serialize page object", e);
+		return projection == null ? key + "|" + format : key + "|" + format + "|" + projection.key();
+	}
+
+	static void encodeKioskInfo(@NotNull ResponseWriter out, @NotNull KioskInfo info, @Nullable String nextPageToken)
+			throws IOException {
+		// basic info
+		out.beginObject();
+		out.name("id").value(info.getId());
+		out.name("url").value(info.getUrl());
+		out.name("name").value(info.getName());
+		out.name("sort").value(info.getSortFilter());
+		out.name("service").value(info.getServiceId());
+		out.name("nextPageToken").value(nextPageToken);
+
+		// items
+		encodeItems(out, info.getRelatedItems());
+		out.endObject();
+	}
+
+	static void encodeItemsPage(@NotNull ResponseWriter out, @NotNull ListExtractor.InfoItemsPage<?> info,
+	                            @Nullable String nextPageToken) throws IOException {
+		// next page token
+		out.beginObject();
+		out.name("nextPageToken").value(nextPageToken);
+
+		// items
+		encodeItems(out, info.getItems());
+		out.endObject();
+	}
+
+	static String encodePage(Page page) {
+		if (PageStore.instance.isEnabled()) {
+			String id = PageStore.instance.put(page);
+			if (id != null)
+				return id;
 		}
+
+		return PageCodec.instance.encode(page);
 	}
 
+	@Nullable
 	private static Page decodePage(String data) {
-		try (ByteArrayInputStream str1 = new ByteArrayInputStream(Base64.getDecoder().decode(data)); ObjectInputStream str2 = new ObjectInputStream(str1)) {
-			return (Page) str2.readObject();
-		} catch (Exception e) {
-			Console.error("Failed to decode page object: ", e);
-			return null; // be more flexible while decoding
+		if (!data.isEmpty() && data.charAt(0) == PageStore.prefix)
+			return PageStore.instance.get(data);
+
+		return PageCodec.instance.decode(data);
+	}
+
+	static void encodeStreamInfo(ResponseWriter out, StreamInfo info) throws IOException {
+		// basic info
+		out.beginObject();
+		out.name("id").value(info.getId());
+		out.name("url").value(info.getUrl());
+		out.name("name").value(info.getName());
+		out.name("host").value(info.getHost());
+		out.name("short").value(info.isShortFormContent());
+		out.name("service").value(info.getServiceId());
+		out.name("license").value(info.getLicence());
+		out.name("category").value(info.getCategory());
+		out.name("duration").value(info.getDuration());
+		out.name("ageLimit").value(info.getAgeLimit());
+		out.name("viewCount").value(info.getViewCount());
+		out.name("likeCount").value(info.getLikeCount());
+		out.name("uploadDate").value(info.getTextualUploadDate());
+		out.name("description").value(info.getDescription().getContent());
+
+		// tags
+		if (out.wants("tags")) {
+			out.name("tags").beginArray();
+			for (String tag : info.getTags())
+				out.value(tag);
+			out.endArray();
+		}
+
+		// stream
+		out.name("stream").value(encodeStreamType(info.getStreamType()));
+
+		// privacy
+		out.name("privacy").value(switch (info.getPrivacy()) {
+			case OTHER -> "other";
+			case PUBLIC -> "public";
+			case PRIVATE -> "private";
+			case INTERNAL -> "internal";
+			case UNLISTED -> "unlisted";
+		});
+
+		// uploader
+		out.name("uploader").beginObject()
+				.name("url").value(info.getUploaderUrl())
+				.name("name").value(info.getUploaderName())
+				.name("verified").value(info.isUploaderVerified())
+				.name("subscribers").value(info.getUploaderSubscriberCount())
+				.endObject();
+
+		// subchannel
+		out.name("subchannel").beginObject()
+				.name("url").value(info.getSubChannelUrl())
+				.name("name").value(info.getSubChannelName())
+				.endObject();
+
+		// thumbnails
+		encodeImages(out, "thumbnails", info.getThumbnails());
+
+		// audio streams
+		if (out.wants("audioStreams")) {
+			out.name("audioStreams").beginArray();
+			for (AudioStream stream : info.getAudioStreams()) {
+				out.beginObject()
+						.name("id").value(stream.getId())
+						.name("url").value(stream.getContent())
+						.name("codec").value(stream.getCodec())
+						.name("quality").value(stream.getQuality())
+						.name("bitrate").value(stream.getBitrate())
+						.endObject();
+			}
+			out.endArray();
+		}
+
+		// video streams
+		if (out.wants("videoStreams")) {
+			out.name("videoStreams").beginArray();
+			for (VideoStream stream : info.getVideoStreams()) {
+				out.beginObject()
+						.name("id").value(stream.getId())
+						.name("url").value(stream.getContent())
+						.name("fps").value(stream.getFps())
+						.name("codec").value(stream.getCodec())
+						.name("width").value(stream.getWidth())
+						.name("height").value(stream.getHeight())
+						.name("bitrate").value(stream.getBitrate())
+						.name("quality").value(stream.getQuality())
+						.endObject();
+			}
+			out.endArray();
+		}
+
+		// related items
+		if (out.wants("relatedItems")) {
+			out.name("relatedItems");
+			encodeItemList(out, info.getRelatedItems());
 		}
+		out.endObject();
 	}
 
-	private static void encodeItems(StringBuilder str, Iterable<? extends InfoItem> items) {
-		str.append(",\"results\":[ ");
+	private static long getStreamExpiry(StreamInfo info) {
+		long expires = Long.MAX_VALUE;
+		for (AudioStream stream : info.getAudioStreams())
+			expires = Math.min(expires, getUrlExpiry(stream.getContent()));
+		for (VideoStream stream : info.getVideoStreams())
+			expires = Math.min(expires, getUrlExpiry(stream.getContent()));
+
+		return expires == Long.MAX_VALUE ? System.currentTimeMillis() + streamDefaultTTL :
+				expires - streamExpiryMargin;
+	}
+
+	private static long getUrlExpiry(@Nullable String url) {
+		if (url == null)
+			return Long.MAX_VALUE;
+
+		// either "?expire=<seconds>" or "/expire/<seconds>/" (DASH and HLS manifests)
+		int i = url.indexOf("expire=");
+		if (i > 0 && (url.charAt(i - 1) == '?' || url.charAt(i - 1) == '&'))
+			i += 7;
+		else if ((i = url.indexOf("/expire/")) >= 0)
+			i += 8;
+		else
+			return Long.MAX_VALUE;
+
+		long value = 0L;
+		int end = Math.min(url.length(), i + 18);
+		for (; i < end; i++) {
+			char ch = url.charAt(i);
+			if (ch < '0' || ch > '9')
+				break;
+
+			value = value * 10 + (ch - '0');
+		}
+
+		return value > 0L ? value * 1000L : Long.MAX_VALUE;
+	}
+
+	private static void encodeItems(ResponseWriter out, Iterable<? extends InfoItem> items) throws IOException {
+		if (out.wants("results")) {
+			out.name("results");
+			encodeItemList(out, items);
+		}
+	}
+
+	private static void encodeItemList(ResponseWriter out, Iterable<? extends InfoItem> items) throws IOException {
+		out.beginArray();
 		for (InfoItem item : items) {
+			out.countItem();
 			if (item instanceof StreamInfoItem)
-				encodeStreamInfoItem(str, (StreamInfoItem) item);
+				encodeStreamInfoItem(out, (StreamInfoItem) item);
 			else if (item instanceof ChannelInfoItem)
-				encodeChannelInfoItem(str, (ChannelInfoItem) item);
+				encodeChannelInfoItem(out, (ChannelInfoItem) item);
 			else if (item instanceof PlaylistInfoItem)
-				encodePlaylistInfoItem(str, (PlaylistInfoItem) item);
+				encodePlaylistInfoItem(out, (PlaylistInfoItem) item);
 			else
-				encodeInfoItem(str, item);
+				encodeInfoItem(out, item);
 		}
-		str.deleteCharAt(str.length() - 1).append("]");
+		out.endArray();
 	}
 
-	private static void encodeImages(StringBuilder str, Iterable<Image> images) {
-		str.append("[ ");
-		for (Image image : images) {
-			str.append("{\"url\":").append(encodeJSON(image.getUrl()))
-					.append(",\"width\":").append(image.getWidth())
-					.append(",\"height\":").append(image.getHeight())
-					.append("},");
+	private static void encodeImages(ResponseWriter out, String name, Iterable<Image> images) throws IOException {
+		if (!out.wants(name))
+			return;
+
+		out.name(name).beginArray();
+		int thumb = out.thumb();
+		if (thumb == Projection.thumbAll) {
+			for (Image image : images)
+				encodeImage(out, image);
+		} else {
+			// only the image closest to the requested width
+			Image selected = null;
+			for (Image image : images) {
+				if (selected == null || isCloser(image.getWidth(), selected.getWidth(), thumb))
+					selected = image;
+			}
+
+			if (selected != null)
+				encodeImage(out, selected);
 		}
-		str.deleteCharAt(str.length() - 1).append("]");
+		out.endArray();
 	}
 
-	private static void encodeInfoItem(StringBuilder str, InfoItem item) {
-		str.append("{\"url\":").append(encodeJSON(item.getUrl()))
-				.append(",\"name\":").append(encodeJSON(item.getName()))
-				.append(",\"type\":").append(switch (item.getInfoType()) {
-					case STREAM -> "\"stream\"";
-					case CHANNEL -> "\"channel\"";
-					case COMMENT -> "\"comment\"";
-					case PLAYLIST -> "\"playlist\"";
-				})
-				.append(",\"thumbnails\":");
-
-		encodeImages(str, item.getThumbnails());
-		str.append("},");
-	}
-
-	private static void encodeStreamInfoItem(StringBuilder str, StreamInfoItem item) {
-		str.append("{\"url\":").append(encodeJSON(item.getUrl()))
-				.append(",\"name\":").append(encodeJSON(item.getName()))
-				.append(",\"type\":").append("\"stream\"")
-				.append(",\"short\":").append(item.isShortFormContent())
-				.append(",\"stream\":").append(switch (item.getStreamType()) {
-					case NONE -> "\"none\"";
-					case LIVE_STREAM -> "\"live\"";
-					case AUDIO_STREAM -> "\"audio\"";
-					case VIDEO_STREAM -> "\"video\"";
-					case POST_LIVE_STREAM -> "\"post_live\"";
-					case AUDIO_LIVE_STREAM -> "\"audio_live\"";
-					case POST_LIVE_AUDIO_STREAM -> "\"post_live_audio\"";
+	private static void encodeImage(ResponseWriter out, Image image) throws IOException {
+		out.beginObject()
+				.name("url").value(image.getUrl())
+				.name("width").value(image.getWidth())
+				.name("height").value(image.getHeight())
+				.endObject();
+	}
+
+	private static boolean isCloser(int width, int current, int target) {
+		if (current == Image.WIDTH_UNKNOWN)
+			return width != Image.WIDTH_UNKNOWN;
+		if (width == Image.WIDTH_UNKNOWN)
+			return false;
+
+		return switch (target) {
+			case Projection.thumbBest -> width > current;
+			case Projection.thumbSmallest -> width < current;
+			default -> {
+				int diff = Math.abs(width - target) - Math.abs(current - target);
+				yield diff < 0 || (diff == 0 && width > current);
+			}
+		};
+	}
+
+	private static void encodeInfoItem(ResponseWriter out, InfoItem item) throws IOException {
+		out.beginObject()
+				.name("url").value(item.getUrl())
+				.name("name").value(item.getName())
+				.name("type").value(switch (item.getInfoType()) {
+					case STREAM -> "stream";
+					case CHANNEL -> "channel";
+					case COMMENT -> "comment";
+					case PLAYLIST -> "playlist";
+				});
+
+		encodeImages(out, "thumbnails", item.getThumbnails());
+		out.endObject();
+	}
+
+	private static void encodeStreamInfoItem(ResponseWriter out, StreamInfoItem item) throws IOException {
+		out.beginObject()
+				.name("url").value(item.getUrl())
+				.name("name").value(item.getName())
+				.name("type").value("stream")
+				.name("short").value(item.isShortFormContent())
+				.name("stream").value(encodeStreamType(item.getStreamType()))
+				.name("duration").value(item.getDuration())
+				.name("viewCount").value(item.getViewCount())
+				.name("uploadDate").value(item.getTextualUploadDate())
+				.name("description").value(item.getShortDescription());
+
+		out.name("uploader").beginObject()
+				.name("url").value(item.getUploaderUrl())
+				.name("name").value(item.getUploaderName())
+				.name("verified").value(item.isUploaderVerified())
+				.endObject();
+
+		encodeImages(out, "thumbnails", item.getThumbnails());
+		out.endObject();
+	}
+
+	private static void encodeChannelInfoItem(ResponseWriter out, ChannelInfoItem item) throws IOException {
+		out.beginObject()
+				.name("url").value(item.getUrl())
+				.name("name").value(item.getName())
+				.name("type").value("channel")
+				.name("streams").value(item.getStreamCount())
+				.name("verified").value(item.isVerified())
+				.name("subscribers").value(item.getSubscriberCount())
+				.name("description").value(item.getDescription());
+
+		encodeImages(out, "thumbnails", item.getThumbnails());
+		out.endObject();
+	}
+
+	private static void encodePlaylistInfoItem(ResponseWriter out, PlaylistInfoItem item) throws IOException {
+		out.beginObject()
+				.name("url").value(item.getUrl())
+				.name("name").value(item.getName())
+				.name("type").value("playlist")
+				.name("streams").value(item.getStreamCount())
+				.name("playlist").value(switch (item.getPlaylistType()) {
+					case NORMAL -> "normal";
+					case MIX_GENRE -> "mix_genre";
+					case MIX_MUSIC -> "mix_music";
+					case MIX_STREAM -> "mix_stream";
+					case MIX_CHANNEL -> "mix_channel";
 				})
-				.append(",\"duration\":").append(item.getDuration())
-				.append(",\"viewCount\":").append(item.getViewCount())
-				.append(",\"uploadDate\":").append(encodeJSON(item.getTextualUploadDate()))
-				.append(",\"description\":").append(encodeJSON(item.getShortDescription()));
-
-		str.append(",\"uploader\":{\"url\":").append(encodeJSON(item.getUploaderUrl()))
-				.append(",\"name\":").append(encodeJSON(item.getUploaderName()))
-				.append(",\"verified\":").append(item.isUploaderVerified())
-				.append("},\"thumbnails\":");
-
-		encodeImages(str, item.getThumbnails());
-		str.append("},");
-	}
-
-	private static void encodeChannelInfoItem(StringBuilder str, ChannelInfoItem item) {
-		str.append("{\"url\":").append(encodeJSON(item.getUrl()))
-				.append(",\"name\":").append(encodeJSON(item.getName()))
-				.append(",\"type\":").append("\"channel\"")
-				.append(",\"streams\":").append(item.getStreamCount())
-				.append(",\"verified\":").append(item.isVerified())
-				.append(",\"subscribers\":").append(item.getSubscriberCount())
-				.append(",\"description\":").append(encodeJSON(item.getDescription()))
-				.append(",\"thumbnails\":");
-
-		encodeImages(str, item.getThumbnails());
-		str.append("},");
-	}
-
-	private static void encodePlaylistInfoItem(StringBuilder str, PlaylistInfoItem item) {
-		str.append("{\"url\":").append(encodeJSON(item.getUrl()))
-				.append(",\"name\":").append(encodeJSON(item.getName()))
-				.append(",\"type\":").append("\"playlist\"")
-				.append(",\"streams\":").append(item.getStreamCount())
-				.append(",\"playlist\":").append(switch (item.getPlaylistType()) {
-					case NORMAL -> "\"normal\"";
-					case MIX_GENRE -> "\"mix_genre\"";
-					case MIX_MUSIC -> "\"mix_music\"";
-					case MIX_STREAM -> "\"mix_stream\"";
-					case MIX_CHANNEL -> "\"mix_channel\"";
-				}).append(",\"description\":").append(encodeJSON(item.getDescription().getContent()));
-
-		str.append(",\"uploader\":{\"url\":").append(encodeJSON(item.getUploaderUrl()))
-				.append(",\"name\":").append(encodeJSON(item.getUploaderName()))
-				.append(",\"verified\":").append(item.isUploaderVerified())
-				.append("},\"thumbnails\":");
-
-		encodeImages(str, item.getThumbnails());
-		str.append("},");
+				.name("description").value(item.getDescription().getContent());
+
+		out.name("uploader").beginObject()
+				.name("url").value(item.getUploaderUrl())
+				.name("name").value(item.getUploaderName())
+				.name("verified").value(item.isUploaderVerified())
+				.endObject();
+
+		encodeImages(out, "thumbnails", item.getThumbnails());
+		out.endObject();
+	}
+
+	private static String encodeStreamType(StreamType type) {
+		return switch (type) {
+			case NONE -> "none";
+			case LIVE_STREAM -> "live";
+			case AUDIO_STREAM -> "audio";
+			case VIDEO_STREAM -> "video";
+			case POST_LIVE_STREAM -> "post_live";
+			case AUDIO_LIVE_STREAM -> "audio_live";
+			case POST_LIVE_AUDIO_STREAM -> "post_live_audio";
+		};
+	}
+
+	private static void sendResponse(@NotNull HttpExchange exchange, int status, @NotNull ResponseWriter writer)
+			throws IOException {
+		if (writer.isCommitted()) {
+			// headers and the first chunks are already out
+			writer.finish();
+			exchange.close();
+			return;
+		}
+
+		// not cached on our side, clients may still revalidate
+		long hash = writer.hash();
+		int size = writer.size();
+		String encoding = size >= Compression.minSize ? Compression.negotiate(exchange) : null;
+		if (sendNotModified(exchange, status, hash, encoding, "no-cache")) {
+			writer.close();
+			return;
+		}
+
+		if (encoding != null) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(size >> 2);
+			try (OutputStream stream = Compression.wrap(out, encoding, Deflater.DEFAULT_COMPRESSION)) {
+				writer.writeTo(stream);
+			}
+
+			sendResponse(exchange, status, new String[]{
+					"Content-Type=" + writer.contentType(),
+					"Content-Encoding=" + encoding,
+					"Vary=Accept, Accept-Encoding",
+					"ETag=" + ETag.format(hash, encoding),
+					"Cache-Control=no-cache"
+			}, out.toByteArray());
+			return;
+		}
+
+		setHeaders(exchange, new String[]{
+				"Content-Type=" + writer.contentType(),
+				"Vary=Accept, Accept-Encoding",
+				"ETag=" + ETag.format(hash, null),
+				"Cache-Control=no-cache"
+		});
+		RequestTiming.setHeader(exchange, size, 0L);
+		exchange.sendResponseHeaders(status, size);
+
+		if (!exchange.getRequestMethod().equals("HEAD")) {
+			try (OutputStream out = exchange.getResponseBody()) {
+				writer.writeTo(out);
+				out.flush();
+			}
+		}
+
+		writer.close();
+		exchange.close();
 	}
 
 	private static void sendResponse(@NotNull HttpExchange exchange, int status, @NotNull String[] headers,
-	                                 byte[] data) throws IOException {
-		Map<String, List<String>> resHeaders = exchange.getResponseHeaders();
-		for (String header : headers) {
-			int i = header.indexOf('=', 1);
-			if (i <= 0)
-				throw new IOException("Invalid header entry: " + header);
+	                                 @NotNull ResponseCache.Entry entry) throws IOException {
+		// let clients keep the body for as long as we do
+		String cacheControl = "max-age=" + Math.max(entry.expires - System.currentTimeMillis(), 0L) / 1000L;
+		String encoding = entry.data.length >= Compression.minSize ? Compression.negotiate(exchange) : null;
+		if (sendNotModified(exchange, status, entry.hash, encoding, cacheControl))
+			return;
+
+		byte[] data = entry.getData(encoding);
+
+		setHeaders(exchange, headers);
+		if (encoding != null)
+			exchange.getResponseHeaders().set("Content-Encoding", encoding);
+
+		setHeaders(exchange, new String[]{
+				"Vary=Accept, Accept-Encoding",
+				"ETag=" + ETag.format(entry.hash, encoding),
+				"Cache-Control=" + cacheControl
+		});
+		sendResponse(exchange, status, new String[]{"Content-Length=" + data.length}, data);
+	}
 
-			resHeaders.put(header.substring(0, i), List.of(header.substring(i + 1)));
+	/**
+	 * Checks the admin token, answering with 404 if admin endpoints are disabled or 403 if the token
+	 * is wrong.
+	 */
+	private static boolean authorize(@NotNull HttpExchange exchange) throws IOException {
+		byte[] token = adminToken;
+		if (token == null) {
+			sendResponse(exchange, 404, new String[]{"Content-Type=text/plain"}, Res.msg404);
+			return false;
+		}
+
+		String header = exchange.getRequestHeaders().getFirst("Authorization");
+		if (header == null || !header.startsWith("Bearer ") || !MessageDigest.isEqual(token,
+				header.substring(7).trim().getBytes(StandardCharsets.UTF_8))) {
+			sendResponse(exchange, 403, new String[]{"Content-Type=text/plain"}, Res.msg403);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sends a file as a download and deletes it.
+	 */
+	private static void sendFile(@NotNull HttpExchange exchange, @NotNull Path file, @NotNull String name)
+			throws IOException {
+		try {
+			setHeaders(exchange, new String[]{
+					"Content-Type=application/octet-stream",
+					"Content-Disposition=attachment; filename=\"" + name + "\""
+			});
+
+			long size = Files.size(file);
+			RequestTiming.setHeader(exchange, size, 0L);
+			exchange.sendResponseHeaders(200, size > 0L ? size : -1L);
+
+			if (size > 0L && !exchange.getRequestMethod().equals("HEAD")) {
+				try (OutputStream out = exchange.getResponseBody()) {
+					Files.copy(file, out);
+				}
+			}
+		} finally {
+			exchange.close();
+			Files.deleteIfExists(file);
+		}
+	}
+
+	/**
+	 * Runs the part of a request that needs an upstream extraction once its endpoint lets it through, or
+	 * answers it with 503 if the endpoint is too busy to start it in time.
+	 */
+	private static void admit(@NotNull HttpExchange exchange, @NotNull String lane,
+	                          @NotNull AdmissionControl.Task task) throws IOException {
+		if (AdmissionControl.instance.run(lane, task))
+			return;
+
+		sendResponse(exchange, 503, new String[]{
+				"Content-Type=text/plain",
+				"Retry-After=" + AdmissionControl.instance.retryAfter()
+		}, Res.msg503);
+	}
+
+	/**
+	 * Answers with 304 if the client already has the body with the given hash. The tag is that of the
+	 * representation a 200 would have sent, in the given content coding.
+	 */
+	private static boolean sendNotModified(@NotNull HttpExchange exchange, int status, long hash,
+	                                       @Nullable String encoding, @NotNull String cacheControl)
+			throws IOException {
+		if (status != 200 || !ETag.matches(exchange, hash))
+			return false;
+
+		setHeaders(exchange, new String[]{
+				"Vary=Accept, Accept-Encoding",
+				"ETag=" + ETag.format(hash, encoding),
+				"Cache-Control=" + cacheControl
+		});
+		RequestTiming.setHeader(exchange, 0L, 0L);
+		exchange.sendResponseHeaders(304, -1L);
+		exchange.close();
+		return true;
+	}
+
+	private static void sendResponse(@NotNull HttpExchange exchange, int status, @NotNull String[] headers,
+	                                 byte[] data) throws IOException {
+		if (exchange.getResponseCode() != -1) {
+			// a streamed response failed halfway, nothing else can be sent
+			exchange.close();
+			return;
 		}
 
+		setHeaders(exchange, headers);
+
 		int dataLength = data == null ? 0 : data.length;
+		RequestTiming.setHeader(exchange, dataLength, 0L);
 		exchange.sendResponseHeaders(status, dataLength);
 
 		if (dataLength > 0 && !exchange.getRequestMethod().equals("HEAD")) {
@@ -651,6 +1248,17 @@ final class HTTPHandlerImpl implements HttpHandler {
 		exchange.close();
 	}
 
+	private static void setHeaders(@NotNull HttpExchange exchange, @NotNull String[] headers) throws IOException {
+		Map<String, List<String>> resHeaders = exchange.getResponseHeaders();
+		for (String header : headers) {
+			int i = header.indexOf('=', 1);
+			if (i <= 0)
+				throw new IOException("Invalid header entry: " + header);
+
+			resHeaders.put(header.substring(0, i), List.of(header.substring(i + 1)));
+		}
+	}
+
 	private static StreamingService getServiceById(@Nullable String id) {
 		if (id == null || id.isEmpty())
 			return ServiceList.YouTube;
@@ -662,7 +1270,7 @@ final class HTTPHandlerImpl implements HttpHandler {
 		}
 	}
 
-	private static Map<String, String> getSearchParams(@Nullable String query) {
+	static Map<String, String> getSearchParams(@Nullable String query) {
 		Map<String, String> params = new HashMap<>();
 		if (query == null || query.isEmpty())
 			return params;
@@ -678,4 +1286,21 @@ final class HTTPHandlerImpl implements HttpHandler {
 
 		return params;
 	}
+
+	private static List<String> getSearchParamValues(@Nullable String query, @NotNull String name) {
+		List<String> values = new ArrayList<>();
+		if (query == null || query.isEmpty())
+			return values;
+
+		for (String part : query.split("&")) {
+			int i = part.indexOf("=", 1);
+			if (i >= 0 && URLDecoder.decode(part.substring(0, i), StandardCharsets.UTF_8).equals(name)) {
+				String value = URLDecoder.decode(part.substring(i + 1), StandardCharsets.UTF_8);
+				if (!value.isEmpty())
+					values.add(value);
+			}
+		}
+
+		return values;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,116 @@
+package com.nettleweb.ytproxy;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * A log-linear latency histogram: every power of two is split into eight linear buckets, which keeps
+ * the error of any quantile below 12.5% over microseconds to days with a few hundred counters.
+ * Counters are {@link LongAdder}s, so concurrent recording doesn't contend on a shared cache line.
+ * Quantiles cover the last one to two minutes; count and sum cover the whole lifetime, as Prometheus
+ * expects.
+ */
+final class Histogram {
+	private static final int subBits = 3;
+	private static final int subCount = 1 << subBits;
+	private static final int maxExponent = 40;
+	private static final int bucketCount = (maxExponent - subBits + 2) * subCount;
+	private static final long window = 60000000000L;
+
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong rotateAt = new AtomicLong(System.nanoTime() + window);
+
+	private volatile LongAdder[] current = newBuckets();
+	private volatile LongAdder[] previous = newBuckets();
+
+	/**
+	 * Records a duration in nanoseconds.
+	 */
+	void record(long nanos) {
+		long micros = Math.max(nanos / 1000L, 0L);
+		rotate(System.nanoTime());
+		current[index(micros)].increment();
+		count.increment();
+		sum.add(micros);
+	}
+
+	long count() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the total of all recorded durations in seconds.
+	 */
+	double sum() {
+		return sum.sum() / 1e6d;
+	}
+
+	/**
+	 * Returns the given quantiles of the recent durations in seconds, NaN if nothing was recorded.
+	 */
+	double[] quantiles(double... quantiles) {
+		rotate(System.nanoTime());
+		LongAdder[] current = this.current;
+		LongAdder[] previous = this.previous;
+
+		long[] counts = new long[bucketCount];
+		long total = 0L;
+		for (int i = 0; i < bucketCount; i++)
+			total += counts[i] = current[i].sum() + previous[i].sum();
+
+		double[] values = new double[quantiles.length];
+		for (int q = 0; q < quantiles.length; q++) {
+			if (total == 0L) {
+				values[q] = Double.NaN;
+				continue;
+			}
+
+			long rank = Math.max((long) Math.ceil(quantiles[q] * total), 1L);
+			int i = 0;
+			for (long seen = counts[0]; seen < rank && i < bucketCount - 1; )
+				seen += counts[++i];
+
+			// the bucket's upper bound, so that a quantile is never understated
+			values[q] = lowerBound(i + 1) / 1e6d;
+		}
+
+		return values;
+	}
+
+	private void rotate(long now) {
+		long at = rotateAt.get();
+		if (now - at < 0L || !rotateAt.compareAndSet(at, now + window))
+			return;
+
+		// a window without any rotation in between means the previous one is stale as well
+		previous = now - at >= window ? newBuckets() : current;
+		current = newBuckets();
+	}
+
+	private static int index(long value) {
+		if (value < subCount)
+			return (int) value;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > maxExponent)
+			return bucketCount - 1;
+
+		return (exponent - subBits + 1) * subCount + (int) (value >>> (exponent - subBits)) - subCount;
+	}
+
+	private static long lowerBound(int index) {
+		if (index < subCount)
+			return index;
+
+		int exponent = index / subCount + subBits - 1;
+		return (long) (subCount + index % subCount) << (exponent - subBits);
+	}
+
+	private static LongAdder[] newBuckets() {
+		LongAdder[] buckets = new LongAdder[bucketCount];
+		for (int i = 0; i < bucketCount; i++)
+			buckets[i] = new LongAdder();
+
+		return buckets;
+	}
+}
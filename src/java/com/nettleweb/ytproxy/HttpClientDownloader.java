@@ -0,0 +1,206 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.downloader.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A downloader on {@link HttpClient}, which keeps connections open between requests and speaks
+ * HTTP/2 where the host supports it, so the several requests of one extraction share a connection
+ * and a TLS handshake instead of opening one each. SOCKS proxies are not supported by the client.
+ */
+final class HttpClientDownloader extends Downloader {
+	// set by the client itself, or by the body publisher
+	private static final Set<String> restrictedHeaders = Set.of("connection", "content-length", "expect", "host",
+			"upgrade");
+
+	// closes bodies that stall, the client itself only times out waiting for the headers
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread thread = new Thread(r, "HttpClientTimer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private final HttpClient client;
+	private final String upstream;
+	private final Duration readTimeout;
+
+	/**
+	 * @param proxy          the proxy of every request, which must not be a SOCKS proxy
+	 * @param upstream       base URL of a server standing in for every upstream host, see
+	 *                       {@link DownloaderImpl}, or null
+	 * @param connectTimeout connect timeout in milliseconds
+	 * @param readTimeout    time until the response headers arrive, and timeout of every read of the
+	 *                       body, in milliseconds
+	 */
+	HttpClientDownloader(@NotNull Proxy proxy, @Nullable String upstream, int connectTimeout, int readTimeout) {
+		HttpClient.Builder builder = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofMillis(connectTimeout))
+				.executor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("HttpClient-", 0L)
+						.factory()));
+
+		if (proxy.type() == Proxy.Type.HTTP)
+			builder.proxy(ProxySelector.of((InetSocketAddress) proxy.address()));
+
+		this.client = builder.build();
+		this.upstream = DownloaderImpl.normalizeUpstream(upstream);
+		this.readTimeout = Duration.ofMillis(readTimeout);
+	}
+
+	@Override
+	public Response execute(@NotNull Request request) throws IOException {
+		String url = request.url();
+		String method = request.httpMethod();
+		byte[] data = request.dataToSend();
+
+		URI target = URI.create(url);
+		Metrics.Upstream metrics = Metrics.instance.upstream(target.getHost());
+		UpstreamEvent event = new UpstreamEvent();
+		event.begin();
+		long start = System.nanoTime();
+		long length = 0L;
+		int status = -1;
+
+		try {
+			URI address = upstream == null ? target : URI.create(upstream + "/" + target.getRawAuthority() +
+					target.getRawPath() + (target.getRawQuery() == null ? "" : "?" + target.getRawQuery()));
+			HttpRequest.Builder builder = HttpRequest.newBuilder(address)
+					.timeout(readTimeout)
+					.method(method, data == null ? HttpRequest.BodyPublishers.noBody() :
+							HttpRequest.BodyPublishers.ofByteArray(data));
+
+			boolean encoding = false;
+			Map<String, List<String>> headers = request.headers();
+			if (headers != null) {
+				for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+					String key = e.getKey();
+					if (restrictedHeaders.contains(key.toLowerCase(Locale.ROOT)))
+						continue;
+
+					encoding |= key.equalsIgnoreCase("Accept-Encoding");
+					for (String v : e.getValue())
+						builder.header(key, v);
+				}
+			}
+
+			// unlike HttpURLConnection, the client never asks for or decodes compressed responses itself
+			if (!encoding)
+				builder.header("Accept-Encoding", DownloaderImpl.acceptEncoding);
+
+			HttpResponse<InputStream> response;
+			try {
+				response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+
+			HttpHeaders responseHeaders = response.headers();
+			String coding = responseHeaders.firstValue("Content-Encoding").orElse(null);
+			DownloaderImpl.CountingInputStream wire = new DownloaderImpl.CountingInputStream(new TimedInputStream(
+					response.body(), readTimeout.toNanos()));
+			String body;
+			try {
+				body = DownloaderImpl.readBody(Compression.unwrap(wire, coding), coding == null ?
+						responseHeaders.firstValueAsLong("Content-Length").orElse(-1L) : -1L);
+			} finally {
+				metrics.received(wire.count);
+				length = wire.count;
+			}
+			status = response.statusCode();
+
+			// the extractor must not see the stand-in's address, nor the coding of a body already decoded
+			return new Response(status, "", DownloaderImpl.decodedHeaders(responseHeaders.map(), coding), body,
+					upstream == null ? response.uri().toString() : url);
+		} finally {
+			metrics.end(status, start);
+			RequestTiming.upstream(method, url, status, start, System.nanoTime());
+
+			if (event.shouldCommit()) {
+				event.method = method;
+				event.host = target.getHost();
+				event.status = status;
+				event.bytes = length;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Fails a read that doesn't complete within the timeout, as a read timeout of a socket would. The
+	 * stream is closed to wake the read up, which then ends it with a SocketTimeoutException.
+	 */
+	private static final class TimedInputStream extends FilterInputStream {
+		private final long timeout;
+		private volatile boolean timedOut = false;
+
+		TimedInputStream(@NotNull InputStream in, long timeout) {
+			super(in);
+			this.timeout = timeout;
+		}
+
+		@Override
+		public int read() throws IOException {
+			ScheduledFuture<?> task = schedule();
+			try {
+				return check(in.read());
+			} catch (IOException e) {
+				throw timedOut ? timeout() : e;
+			} finally {
+				task.cancel(false);
+			}
+		}
+
+		@Override
+		public int read(@NotNull byte[] b, int off, int len) throws IOException {
+			ScheduledFuture<?> task = schedule();
+			try {
+				return check(in.read(b, off, len));
+			} catch (IOException e) {
+				throw timedOut ? timeout() : e;
+			} finally {
+				task.cancel(false);
+			}
+		}
+
+		@NotNull
+		private ScheduledFuture<?> schedule() throws IOException {
+			if (timedOut)
+				throw timeout();
+
+			return timer.schedule(() -> {
+				timedOut = true;
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing left to read anyway
+				}
+			}, timeout, TimeUnit.NANOSECONDS);
+		}
+
+		// a closed body reads as its end
+		private int check(int n) throws IOException {
+			if (timedOut)
+				throw timeout();
+
+			return n;
+		}
+
+		@NotNull
+		private static SocketTimeoutException timeout() {
+			return new SocketTimeoutException("Read timed out");
+		}
+	}
+}
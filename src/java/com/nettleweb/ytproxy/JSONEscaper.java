@@ -0,0 +1,111 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Word-at-a-time helpers for escaping UTF-8 encoded JSON strings. Bytes of multibyte UTF-8 sequences
+ * are all >= 0x80, so only ASCII bytes ever need escaping and the scan can ignore character boundaries.
+ */
+final class JSONEscaper {
+	private static final VarHandle longView = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private static final long ones = 0x0101010101010101L;
+	private static final long highs = 0x8080808080808080L;
+	private static final long quotes = ones * '"';
+	private static final long backslashes = ones * '\\';
+	private static final long controls = ones * 0x20;
+
+	// escape sequence of every ASCII character, or null if it can be copied as is
+	static final byte[][] escapes = new byte[128][];
+
+	static {
+		final byte[] hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+		for (int ch = 0; ch < 0x20; ch++)
+			escapes[ch] = new byte[]{'\\', 'u', '0', '0', hex[ch >> 4], hex[ch & 15]};
+
+		escapes['"'] = new byte[]{'\\', '"'};
+		escapes['\\'] = new byte[]{'\\', '\\'};
+		escapes['\b'] = new byte[]{'\\', 'b'};
+		escapes['\f'] = new byte[]{'\\', 'f'};
+		escapes['\n'] = new byte[]{'\\', 'n'};
+		escapes['\r'] = new byte[]{'\\', 'r'};
+		escapes['\t'] = new byte[]{'\\', 't'};
+	}
+
+	private JSONEscaper() {}
+
+	/**
+	 * Returns the index of the first byte in {@code [from, to)} that needs escaping, or {@code to} if
+	 * there is none.
+	 */
+	static int indexOfEscape(@NotNull byte[] data, int from, int to) {
+		int i = from;
+		for (int end = to - 7; i < end; i += 8) {
+			long word = (long) longView.get(data, i);
+			long mask = hasZero(word ^ quotes) | hasZero(word ^ backslashes) | ((word - controls) & ~word & highs);
+
+			// borrows only ever flag bytes above a real match, so the lowest flag is exact
+			if (mask != 0L)
+				return i + (Long.numberOfTrailingZeros(mask) >>> 3);
+		}
+
+		for (; i < to; i++) {
+			int b = data[i];
+			if (b >= 0 && escapes[b] != null)
+				return i;
+		}
+
+		return to;
+	}
+
+	/**
+	 * Encodes the string as UTF-8 into the given buffer, which must hold at least {@code 3 * length}
+	 * bytes. Unpaired surrogates are replaced with '?', same as {@link String#getBytes}.
+	 */
+	static int encodeUTF8(@NotNull String str, @NotNull byte[] dst) {
+		final int length = str.length();
+		int pos = 0;
+		int i = 0;
+
+		// ASCII prefix, by far the most common case
+		for (char ch; i < length && (ch = str.charAt(i)) < 0x80; i++)
+			dst[pos++] = (byte) ch;
+
+		for (; i < length; i++) {
+			char ch = str.charAt(i);
+			if (ch < 0x80) {
+				dst[pos++] = (byte) ch;
+			} else if (ch < 0x800) {
+				dst[pos++] = (byte) (0xC0 | (ch >> 6));
+				dst[pos++] = (byte) (0x80 | (ch & 0x3F));
+			} else if (Character.isSurrogate(ch)) {
+				char low;
+				if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(low =
+						str.charAt(i + 1))) {
+					int cp = Character.toCodePoint(ch, low);
+					dst[pos++] = (byte) (0xF0 | (cp >> 18));
+					dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+					i++;
+				} else dst[pos++] = '?';
+			} else {
+				dst[pos++] = (byte) (0xE0 | (ch >> 12));
+				dst[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+				dst[pos++] = (byte) (0x80 | (ch & 0x3F));
+			}
+		}
+
+		return pos;
+	}
+
+	private static long hasZero(long word) {
+		return (word - ones) & ~word & highs;
+	}
+}
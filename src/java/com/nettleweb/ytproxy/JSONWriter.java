@@ -0,0 +1,126 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+
+/**
+ * Encodes JSON straight to UTF-8.
+ */
+final class JSONWriter extends ResponseWriter {
+	JSONWriter() {
+		this(null, null);
+	}
+
+	JSONWriter(@Nullable HttpExchange exchange) {
+		this(exchange, null);
+	}
+
+	JSONWriter(@Nullable HttpExchange exchange, @Nullable Projection projection) {
+		super(exchange, projection, true);
+	}
+
+	@NotNull
+	@Override
+	String contentType() {
+		return "application/json";
+	}
+
+	@Override
+	void writeBeginObject() throws IOException {
+		writeByte('{');
+	}
+
+	@Override
+	void writeEndObject(int size) throws IOException {
+		writeByte('}');
+	}
+
+	@Override
+	void writeBeginArray() throws IOException {
+		writeByte('[');
+	}
+
+	@Override
+	void writeEndArray(int size) throws IOException {
+		writeByte(']');
+	}
+
+	@Override
+	void writeSeparator() throws IOException {
+		writeByte(',');
+	}
+
+	@Override
+	void writeName(@NotNull String name) throws IOException {
+		writeString(name);
+		writeByte(':');
+	}
+
+	@Override
+	void writeNull() throws IOException {
+		writeByte('n');
+		writeByte('u');
+		writeByte('l');
+		writeByte('l');
+	}
+
+	@Override
+	void writeBoolean(boolean value) throws IOException {
+		if (value) {
+			writeByte('t');
+			writeByte('r');
+			writeByte('u');
+			writeByte('e');
+		} else {
+			writeByte('f');
+			writeByte('a');
+			writeByte('l');
+			writeByte('s');
+			writeByte('e');
+		}
+	}
+
+	@Override
+	void writeLong(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			for (char ch : Long.toString(value).toCharArray())
+				writeByte(ch);
+			return;
+		}
+
+		if (value < 0L) {
+			writeByte('-');
+			value = -value;
+		}
+
+		long div = 1L;
+		while (div <= value / 10L)
+			div *= 10L;
+
+		for (; div > 0L; div /= 10L)
+			writeByte((int) ('0' + (value / div) % 10L));
+	}
+
+	@Override
+	void writeString(@NotNull String str) throws IOException {
+		byte[] scratch = scratch(str.length() * 3);
+		final int end = JSONEscaper.encodeUTF8(str, scratch);
+		writeByte('"');
+
+		// copy clean runs in bulk, escaping in between
+		for (int i = 0; i < end; ) {
+			int next = JSONEscaper.indexOfEscape(scratch, i, end);
+			writeBytes(scratch, i, next - i);
+			if (next == end)
+				break;
+
+			byte[] escape = JSONEscaper.escapes[scratch[next]];
+			writeBytes(escape, 0, escape.length);
+			i = next + 1;
+		}
+
+		writeByte('"');
+	}
+}
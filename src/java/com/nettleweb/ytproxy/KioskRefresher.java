@@ -0,0 +1,145 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.*;
+import org.schabi.newpipe.extractor.kiosk.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class KioskRefresher {
+	public static final KioskRefresher instance = new KioskRefresher();
+
+	// number of continuation pages kept alongside the first page
+	private static final int maxPages = 3;
+
+	private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(2, r -> {
+		Thread thread = new Thread(r, "KioskRefresher");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private volatile long interval = 600000L;
+
+	private KioskRefresher() {}
+
+	void setInterval(long interval) {
+		this.interval = interval;
+	}
+
+	void start() {
+		if (interval <= 0L)
+			return;
+
+		for (StreamingService service : ServiceList.all()) {
+			Set<String> kiosks;
+			try {
+				kiosks = service.getKioskList().getAvailableKiosks();
+			} catch (Exception e) {
+				continue; // service without kiosks
+			}
+
+			// spread the initial fetches so that they do not hit upstream all at once
+			for (String kioskId : kiosks)
+				schedule(service, kioskId, ThreadLocalRandom.current().nextLong(5000L));
+		}
+	}
+
+	/**
+	 * Returns the pre-encoded response for the given kiosk page, or {@code null} if it is not in the
+	 * snapshot (yet).
+	 */
+	@Nullable
+	ResponseCache.Entry get(int serviceId, @NotNull String kioskId, @Nullable String page) {
+		Snapshot snapshot = snapshots.get(serviceId + ":" + kioskId);
+		if (snapshot == null) {
+			misses.increment();
+			return null;
+		}
+
+		// do not serve snapshots that repeatedly failed to refresh
+		if (System.currentTimeMillis() - snapshot.time > interval * 3L) {
+			snapshots.remove(serviceId + ":" + kioskId, snapshot);
+			misses.increment();
+			return null;
+		}
+
+		ResponseCache.Entry entry = page == null || page.isEmpty() ? snapshot.data : snapshot.pages.get(page);
+		if (entry == null)
+			misses.increment();
+		else
+			hits.increment();
+
+		return entry;
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long misses() {
+		return misses.sum();
+	}
+
+	private void schedule(StreamingService service, String kioskId, long delay) {
+		executor.schedule(() -> refresh(service, kioskId), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void refresh(StreamingService service, String kioskId) {
+		try {
+			KioskExtractor<?> extractor = service.getKioskList().getExtractorById(kioskId, null);
+			extractor.fetchPage();
+
+			KioskInfo info = KioskInfo.getInfo(extractor);
+			Page next = info.hasNextPage() ? info.getNextPage() : null;
+			String token = next == null ? null : HTTPHandlerImpl.encodePage(next);
+			JSONWriter json = new JSONWriter();
+			HTTPHandlerImpl.encodeKioskInfo(json, info, token);
+
+			// valid until the next refresh, used for the Cache-Control hint
+			long expires = System.currentTimeMillis() + interval;
+			ResponseCache.Entry data = new ResponseCache.Entry(json.toByteArray(), expires);
+
+			Map<String, ResponseCache.Entry> pages = new HashMap<>();
+			for (int i = 0; i < maxPages && next != null; i++) {
+				ListExtractor.InfoItemsPage<?> items = extractor.getPage(next);
+				next = items.hasNextPage() ? items.getNextPage() : null;
+
+				String nextToken = next == null ? null : HTTPHandlerImpl.encodePage(next);
+				json = new JSONWriter();
+				HTTPHandlerImpl.encodeItemsPage(json, items, nextToken);
+				pages.put(token, new ResponseCache.Entry(json.toByteArray(), expires));
+				token = nextToken;
+			}
+
+			snapshots.put(service.getServiceId() + ":" + kioskId, new Snapshot(data, pages));
+		} catch (Exception e) {
+			Console.warn("Failed to refresh kiosk " + kioskId + " of service " + service.getServiceId() + ": " + e);
+		} finally {
+			long interval = this.interval;
+
+			// +/- 20% jitter
+			if (interval > 0L)
+				schedule(service, kioskId, interval + ThreadLocalRandom.current().nextLong(-interval / 5L,
+						interval / 5L + 1L));
+		}
+	}
+
+	private static final class Snapshot {
+		private final ResponseCache.Entry data;
+		private final Map<String, ResponseCache.Entry> pages;
+		private final long time = System.currentTimeMillis();
+
+		private Snapshot(ResponseCache.Entry data, Map<String, ResponseCache.Entry> pages) {
+			this.data = data;
+			this.pages = pages;
+		}
+	}
+}
@@ -4,17 +4,13 @@ import com.nettleweb.client.*;
 import com.sun.net.httpserver.*;
 import org.schabi.newpipe.extractor.*;
 import org.schabi.newpipe.extractor.downloader.*;
-import org.schabi.newpipe.extractor.kiosk.*;
 import org.schabi.newpipe.extractor.localization.*;
 
 import java.net.*;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.*;
 
 public final class Main {
-	private static final ExecutorService defaultExecutor = Executors.newFixedThreadPool(6,
-			DefaultThreadFactory.instance);
-
 	static {
 		try {
 			System.loadLibrary("nettleweb");
@@ -31,6 +27,18 @@ public final class Main {
 		int port = 80;
 		String host = "0.0.0.0";
 		String proxy = null;
+		String executor = "platform";
+		int concurrency = 0;
+		boolean jfr = false;
+		int maxQueue = 64;
+		long maxWait = 10000L;
+		String record = null;
+		String replay = null;
+		long replayLatency = 0L;
+		String upstream = null;
+		String transport = "urlconnection";
+		int connectTimeout = 10000;
+		int readTimeout = 10000;
 
 		for (String arg : args) {
 			if (arg.length() > 1 && arg.charAt(0) == '-') {
@@ -39,13 +47,55 @@ public final class Main {
 					case "host" -> parse = 1;
 					case "port" -> parse = 2;
 					case "proxy" -> parse = 3;
+					case "cache-size" -> parse = 4;
+					case "kiosk-refresh" -> parse = 5;
+					case "executor" -> parse = 6;
+					case "concurrency" -> parse = 7;
+					case "token-key" -> parse = 8;
+					case "page-store" -> parse = 9;
+					case "prefetch" -> parse = 10;
+					case "max-queue" -> parse = 11;
+					case "max-wait" -> parse = 12;
+					case "rate-limit" -> parse = 13;
+					case "client-header" -> parse = 14;
+					case "slow-log" -> parse = 15;
+					case "admin-token" -> parse = 16;
+					case "record" -> parse = 17;
+					case "replay" -> parse = 18;
+					case "replay-latency" -> parse = 19;
+					case "upstream" -> parse = 20;
+					case "transport" -> parse = 21;
+					case "connect-timeout" -> parse = 22;
+					case "read-timeout" -> parse = 23;
+					case "jfr" -> jfr = true;
 					case "help" -> {
 						Console.println("Usage: yt-proxy [OPTION...]\n");
-						Console.println("\t--host <name>    Start the HTTP server with the specified host.");
-						Console.println("\t--port <port>    Start the HTTP server with the specified port.");
-						Console.println("\t--proxy <url>    Send HTTP requests through the proxy server.");
-						Console.println("\t--help           Show this help message and exit");
-						Console.println("\t--version        Show version information and exit.\n");
+						Console.println("\t--host <name>           Start the HTTP server with the specified host.");
+						Console.println("\t--port <port>           Start the HTTP server with the specified port.");
+						Console.println("\t--proxy <url>           Send HTTP requests through the proxy server.");
+						Console.println("\t--cache-size <MiB>      Memory budget of the stream info cache (0 to disable).");
+						Console.println("\t--kiosk-refresh <sec>   Interval of the trending snapshot refresh (0 to disable).");
+						Console.println("\t--executor <type>       Run requests on \"platform\" (default) or \"virtual\" threads.");
+						Console.println("\t--concurrency <n>       Maximum number of requests handled at once.");
+						Console.println("\t--token-key <secret>    Sign page tokens with a fixed key instead of a random one.");
+						Console.println("\t--page-store <MiB>      Keep continuation pages on the server and send short IDs.");
+						Console.println("\t--prefetch <n>          Fetch up to n next search/playlist pages ahead of time.");
+						Console.println("\t--max-queue <n>         Maximum number of requests waiting per endpoint (default 64).");
+						Console.println("\t--max-wait <ms>         Give up on requests that could not start in time (default 10000).");
+						Console.println("\t--rate-limit <limit>    Per-client limit of an endpoint, as <path>=<per second>[/<burst>].");
+						Console.println("\t--client-header <name>  Identify clients by a header set by a reverse proxy.");
+						Console.println("\t--slow-log <ms>         Log the upstream timeline of requests slower than this.");
+						Console.println("\t--jfr                   Keep a flight recording of the last 15 minutes.");
+						Console.println("\t--admin-token <secret>  Enable the /admin endpoints for this bearer token.");
+						Console.println("\t--record <dir>          Save every upstream request and response to the directory.");
+						Console.println("\t--replay <dir>          Answer upstream requests from a recording instead of the network.");
+						Console.println("\t--replay-latency <ms>   Delay of replayed responses, or \"recorded\" (default 0).");
+						Console.println("\t--upstream <url>        Send all upstream requests to a stand-in server (load tests).");
+						Console.println("\t--transport <type>      Upstream HTTP client, \"urlconnection\" (default) or \"httpclient\".");
+						Console.println("\t--connect-timeout <ms>  Upstream connect timeout (default 10000).");
+						Console.println("\t--read-timeout <ms>     Upstream read timeout (default 10000).");
+						Console.println("\t--help                  Show this help message and exit");
+						Console.println("\t--version               Show version information and exit.\n");
 						System.exit(0);
 					}
 					case "version" -> {
@@ -81,6 +131,226 @@ public final class Main {
 						}
 						parse = 0;
 					}
+					case 4 -> {
+						try {
+							long size = Long.parseLong(arg);
+							if (size < 0L) {
+								Console.printErr("Error: Cache size must not be negative.");
+								System.exit(1);
+							}
+							HTTPHandlerImpl.streamCache.setCapacity(size << 20);
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid cache size: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 5 -> {
+						try {
+							long interval = Long.parseLong(arg);
+							if (interval < 0L) {
+								Console.printErr("Error: Refresh interval must not be negative.");
+								System.exit(1);
+							}
+							KioskRefresher.instance.setInterval(interval * 1000L);
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid refresh interval: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 6 -> {
+						if (!arg.equals("platform") && !arg.equals("virtual")) {
+							Console.printErr("Error: Invalid executor type: " + arg);
+							System.exit(1);
+						}
+						executor = arg;
+						parse = 0;
+					}
+					case 7 -> {
+						try {
+							concurrency = Integer.parseInt(arg);
+							if (concurrency <= 0) {
+								Console.printErr("Error: Concurrency must be a positive number.");
+								System.exit(1);
+							}
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid concurrency value: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 8 -> {
+						if (arg.isEmpty()) {
+							Console.printErr("Error: Token key must not be empty.");
+							System.exit(1);
+						}
+						PageCodec.instance.setKey(arg);
+						parse = 0;
+					}
+					case 9 -> {
+						try {
+							long size = Long.parseLong(arg);
+							if (size < 0L) {
+								Console.printErr("Error: Page store size must not be negative.");
+								System.exit(1);
+							}
+							PageStore.instance.setCapacity(size << 20);
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid page store size: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 10 -> {
+						try {
+							int n = Integer.parseInt(arg);
+							if (n < 0) {
+								Console.printErr("Error: Prefetch limit must not be negative.");
+								System.exit(1);
+							}
+							Prefetcher.instance.setConcurrency(n);
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid prefetch limit: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 11 -> {
+						try {
+							maxQueue = Integer.parseInt(arg);
+							if (maxQueue <= 0) {
+								Console.printErr("Error: Queue size must be a positive number.");
+								System.exit(1);
+							}
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid queue size: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 12 -> {
+						try {
+							maxWait = Long.parseLong(arg);
+							if (maxWait <= 0L) {
+								Console.printErr("Error: Queue wait must be a positive number.");
+								System.exit(1);
+							}
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid queue wait: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 13 -> {
+						try {
+							RateLimiter.instance.setLimit(arg);
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid rate limit: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 14 -> {
+						if (arg.isEmpty()) {
+							Console.printErr("Error: Client header must not be empty.");
+							System.exit(1);
+						}
+						RateLimiter.instance.setClientHeader(arg);
+						parse = 0;
+					}
+					case 15 -> {
+						try {
+							long threshold = Long.parseLong(arg);
+							if (threshold < 0L) {
+								Console.printErr("Error: Slow log threshold must not be negative.");
+								System.exit(1);
+							}
+							RequestTiming.setSlowThreshold(threshold);
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid slow log threshold: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
+					case 16 -> {
+						if (arg.isEmpty()) {
+							Console.printErr("Error: Admin token must not be empty.");
+							System.exit(1);
+						}
+						HTTPHandlerImpl.setAdminToken(arg);
+						parse = 0;
+					}
+					case 17 -> {
+						if (arg.isEmpty()) {
+							Console.printErr("Error: Recording directory must not be empty.");
+							System.exit(1);
+						}
+						record = arg;
+						parse = 0;
+					}
+					case 18 -> {
+						if (arg.isEmpty()) {
+							Console.printErr("Error: Replay directory must not be empty.");
+							System.exit(1);
+						}
+						replay = arg;
+						parse = 0;
+					}
+					case 19 -> {
+						if (arg.equals("recorded")) {
+							replayLatency = -1L;
+						} else {
+							try {
+								replayLatency = Long.parseLong(arg);
+								if (replayLatency < 0L) {
+									Console.printErr("Error: Replay latency must not be negative.");
+									System.exit(1);
+								}
+							} catch (Exception e) {
+								Console.printErr("Error: Invalid replay latency: " + arg);
+								System.exit(1);
+							}
+						}
+						parse = 0;
+					}
+					case 20 -> {
+						try {
+							URI uri = new URI(arg);
+							if (!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme()))
+								throw new URISyntaxException(arg, "Not an HTTP URL");
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid upstream URL: " + arg);
+							System.exit(1);
+						}
+						upstream = arg;
+						parse = 0;
+					}
+					case 21 -> {
+						if (!arg.equals("urlconnection") && !arg.equals("httpclient")) {
+							Console.printErr("Error: Invalid transport: " + arg);
+							System.exit(1);
+						}
+						transport = arg;
+						parse = 0;
+					}
+					case 22, 23 -> {
+						try {
+							int timeout = Integer.parseInt(arg);
+							if (timeout <= 0) {
+								Console.printErr("Error: Timeout must be a positive number.");
+								System.exit(1);
+							}
+							if (parse == 22)
+								connectTimeout = timeout;
+							else
+								readTimeout = timeout;
+						} catch (Exception e) {
+							Console.printErr("Error: Invalid timeout: " + arg);
+							System.exit(1);
+						}
+						parse = 0;
+					}
 					default -> {
 						Console.printErr("Error: Invalid arguments.");
 						Console.printErr("Try '--help' for more information.");
@@ -90,35 +360,72 @@ public final class Main {
 			}
 		}
 
+		if (record != null && replay != null) {
+			Console.printErr("Error: --record and --replay cannot be used together.");
+			System.exit(1);
+		}
+
+		Proxy p = DownloaderImpl.parseProxy(proxy);
+		if (transport.equals("httpclient") && p.type() == Proxy.Type.SOCKS) {
+			Console.warn("The httpclient transport does not support SOCKS proxies, using urlconnection.");
+			transport = "urlconnection";
+		}
+
 		Console.log("Proxy: " + proxy);
+		Console.log("Transport: " + transport);
+		Console.log("Executor: " + executor);
 		Console.log("Use native: " + VM.useNative);
 		Console.log("Initializing...");
 
 		{
-			Downloader downloader = new DownloaderImpl(proxy);
-
+			Downloader downloader = transport.equals("httpclient") ?
+					new HttpClientDownloader(p, upstream, connectTimeout, readTimeout) :
+					new DownloaderImpl(p, upstream, connectTimeout, readTimeout);
 			try {
-				String ip = downloader.get("https://ipinfo.io/ip").responseBody();
-				if (!ip.isEmpty())
-					Console.println("  Your public IP: " + ip);
+				if (replay != null)
+					downloader = RecordedDownloader.replay(Paths.get(replay), replayLatency);
+				else if (record != null)
+					downloader = RecordedDownloader.record(downloader, Paths.get(record));
 			} catch (Exception e) {
-				// ignore
+				Console.printErr("Error: Failed to open upstream recording: " + e.getMessage());
+				System.exit(1);
+				return;
+			}
+
+			if (replay == null && upstream == null) {
+				try {
+					String ip = downloader.get("https://ipinfo.io/ip").responseBody();
+					if (!ip.isEmpty())
+						Console.println("  Your public IP: " + ip);
+				} catch (Exception e) {
+					// ignore
+				}
 			}
 
 			NewPipe.init(downloader, Localization.fromLocale(Locale.ROOT), new ContentCountry("US"));
 		}
 
-		Console.log("Starting server...");
-		try {
-			// prefetch resources
-			KioskInfo.getInfo(ServiceList.YouTube, "https://www.youtube.com/feed/trending");
-		} catch (Exception e) {
-			// ignore
+		if (jfr) {
+			try {
+				FlightRecorderControl.instance.startContinuous();
+			} catch (Exception e) {
+				Console.warn("Failed to start flight recording: " + e);
+			}
 		}
 
+		Console.log("Starting server...");
+		KioskRefresher.instance.start();
+
+		boolean virtual = executor.equals("virtual");
+		int workers = concurrency > 0 ? concurrency : virtual ? 4096 : 6;
+		ExchangeExecutor pool = virtual ? new VirtualThreadExecutor(workers, maxQueue) :
+				new PlatformThreadExecutor(workers, maxQueue);
+		AdmissionControl.instance.configure(pool, workers, maxQueue, maxWait);
+		Metrics.instance.setQueueDepth(pool::queued);
+
 		HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 255);
 		server.createContext("/", HTTPHandlerImpl.instance);
-		server.setExecutor(defaultExecutor);
+		server.setExecutor(pool);
 		server.start();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,247 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Request, upstream and cache metrics, rendered in the Prometheus text format. Recording is a few
+ * {@link LongAdder} increments, cheap enough to leave on for every request.
+ */
+final class Metrics {
+	public static final Metrics instance = new Metrics();
+
+	private static final double[] quantiles = {0.5d, 0.99d, 0.999d};
+	private static final int maxHosts = 32;
+
+	private final Map<String, Route> routes = new LinkedHashMap<>();
+	private final Route otherRoute = new Route("other");
+	private final Map<String, Upstream> upstreams = new ConcurrentHashMap<>();
+	private final Upstream otherUpstream = new Upstream("other");
+	private final Histogram queueWait = new Histogram();
+
+	private volatile IntSupplier queueDepth = () -> 0;
+
+	private Metrics() {
+		for (String path : new String[]{"/search", "/stream", "/streams", "/channel", "/playlist", "/trending",
+				"/stats", "/metrics", "/robots.txt", "/favicon.ico"})
+			routes.put(path, new Route(path));
+	}
+
+	void setQueueDepth(@NotNull IntSupplier queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	/**
+	 * Returns the metrics of the given request path, unknown paths share one entry.
+	 */
+	@NotNull
+	Route route(@Nullable String path) {
+		Route route = path == null ? null : routes.get(path);
+		return route == null ? otherRoute : route;
+	}
+
+	/**
+	 * Returns the metrics of the given upstream host, hosts beyond the first few share one entry.
+	 */
+	@NotNull
+	Upstream upstream(@Nullable String host) {
+		if (host == null || host.isEmpty())
+			return otherUpstream;
+
+		Upstream upstream = upstreams.get(host);
+		if (upstream == null) {
+			if (upstreams.size() >= maxHosts)
+				return otherUpstream;
+
+			upstream = upstreams.computeIfAbsent(host, Upstream::new);
+		}
+
+		return upstream;
+	}
+
+	/**
+	 * Records how long an exchange waited before its work started, in nanoseconds.
+	 */
+	void recordQueueWait(long nanos) {
+		queueWait.record(nanos);
+	}
+
+	@NotNull
+	byte[] render() {
+		StringBuilder out = new StringBuilder(16384);
+		List<Route> routes = new ArrayList<>(this.routes.values());
+		routes.add(otherRoute);
+		List<Upstream> upstreams = new ArrayList<>(this.upstreams.values());
+		upstreams.add(otherUpstream);
+
+		// requests
+		header(out, "ytproxy_requests_total", "counter", "Requests handled, by route and status.");
+		for (Route route : routes)
+			counters(out, "ytproxy_requests_total", "route=\"" + route.name + "\"", route.statuses);
+
+		header(out, "ytproxy_requests_in_flight", "gauge", "Requests currently being handled.");
+		for (Route route : routes)
+			sample(out, "ytproxy_requests_in_flight", "route=\"" + route.name + "\"", route.inFlight.sum());
+
+		header(out, "ytproxy_request_duration_seconds", "summary", "Time from dispatch to the end of the response.");
+		for (Route route : routes)
+			summary(out, "ytproxy_request_duration_seconds", "route=\"" + route.name + "\"", route.latency);
+
+		// upstream
+		header(out, "ytproxy_upstream_requests_total", "counter", "Upstream requests, by host and status.");
+		for (Upstream upstream : upstreams)
+			counters(out, "ytproxy_upstream_requests_total", "host=\"" + upstream.host + "\"", upstream.statuses);
+
+		header(out, "ytproxy_upstream_duration_seconds", "summary", "Upstream request time including the body.");
+		for (Upstream upstream : upstreams)
+			summary(out, "ytproxy_upstream_duration_seconds", "host=\"" + upstream.host + "\"", upstream.latency);
+
+		header(out, "ytproxy_upstream_received_bytes_total", "counter", "Upstream response body bytes.");
+		for (Upstream upstream : upstreams)
+			sample(out, "ytproxy_upstream_received_bytes_total", "host=\"" + upstream.host + "\"",
+					upstream.bytes.sum());
+
+		// queues
+		header(out, "ytproxy_executor_queued", "gauge", "Admitted requests waiting for a worker.");
+		sample(out, "ytproxy_executor_queued", null, queueDepth.getAsInt());
+
+		header(out, "ytproxy_admission_queued", "gauge", "Requests waiting for a slot in an endpoint's lane.");
+		sample(out, "ytproxy_admission_queued", null, AdmissionControl.instance.queued());
+
+		header(out, "ytproxy_admission_rejected_total", "counter", "Requests answered with 503, by reason.");
+		sample(out, "ytproxy_admission_rejected_total", "reason=\"full\"", AdmissionControl.instance.rejected());
+		sample(out, "ytproxy_admission_rejected_total", "reason=\"expired\"", AdmissionControl.instance.expired());
+		sample(out, "ytproxy_admission_rejected_total", "reason=\"shed\"", AdmissionControl.instance.shed());
+
+		header(out, "ytproxy_queue_wait_seconds", "summary", "Time between accepting an exchange and starting its work.");
+		summary(out, "ytproxy_queue_wait_seconds", null, queueWait);
+
+		header(out, "ytproxy_rate_limited_total", "counter", "Requests answered with 429.");
+		sample(out, "ytproxy_rate_limited_total", null, RateLimiter.instance.limited());
+
+		// caches
+		header(out, "ytproxy_cache_requests_total", "counter", "Cache lookups, by cache and result.");
+		sample(out, "ytproxy_cache_requests_total", "cache=\"stream\",result=\"hit\"",
+				HTTPHandlerImpl.streamCache.hits());
+		sample(out, "ytproxy_cache_requests_total", "cache=\"stream\",result=\"miss\"",
+				HTTPHandlerImpl.streamCache.misses());
+		sample(out, "ytproxy_cache_requests_total", "cache=\"trending\",result=\"hit\"",
+				KioskRefresher.instance.hits());
+		sample(out, "ytproxy_cache_requests_total", "cache=\"trending\",result=\"miss\"",
+				KioskRefresher.instance.misses());
+		sample(out, "ytproxy_cache_requests_total", "cache=\"prefetch\",result=\"hit\"", Prefetcher.instance.hits());
+		sample(out, "ytproxy_cache_requests_total", "cache=\"prefetch\",result=\"wasted\"",
+				Prefetcher.instance.wasted());
+
+		header(out, "ytproxy_cache_size_bytes", "gauge", "Memory used by cached responses.");
+		sample(out, "ytproxy_cache_size_bytes", "cache=\"stream\"", HTTPHandlerImpl.streamCache.size());
+
+		header(out, "ytproxy_singleflight_total", "counter", "Upstream extractions, by whether they were shared.");
+		sample(out, "ytproxy_singleflight_total", "result=\"executed\"", SingleFlight.instance.executed());
+		sample(out, "ytproxy_singleflight_total", "result=\"coalesced\"", SingleFlight.instance.coalesced());
+
+		return out.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void header(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String name, @Nullable String labels, double value) {
+		out.append(name);
+		if (labels != null)
+			out.append('{').append(labels).append('}');
+
+		out.append(' ');
+		if (Double.isNaN(value))
+			out.append("NaN");
+		else if (value == Math.rint(value) && Math.abs(value) < 1e15d)
+			out.append((long) value);
+		else
+			out.append(value);
+
+		out.append('\n');
+	}
+
+	private static void counters(StringBuilder out, String name, String labels, Map<Integer, LongAdder> statuses) {
+		for (Map.Entry<Integer, LongAdder> e : new TreeMap<>(statuses).entrySet()) {
+			int status = e.getKey();
+			sample(out, name, labels + ",status=\"" + (status < 0 ? "error" : status) + "\"", e.getValue().sum());
+		}
+	}
+
+	private static void summary(StringBuilder out, String name, @Nullable String labels, Histogram histogram) {
+		String prefix = labels == null ? "" : labels + ",";
+		double[] values = histogram.quantiles(quantiles);
+		for (int i = 0; i < quantiles.length; i++)
+			sample(out, name, prefix + "quantile=\"" + quantiles[i] + "\"", values[i]);
+
+		sample(out, name + "_sum", labels, histogram.sum());
+		sample(out, name + "_count", labels, histogram.count());
+	}
+
+	private static void increment(Map<Integer, LongAdder> statuses, int status) {
+		LongAdder adder = statuses.get(status);
+		if (adder == null)
+			adder = statuses.computeIfAbsent(status, k -> new LongAdder());
+
+		adder.increment();
+	}
+
+	static final class Route {
+		private final String name;
+		private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+		private final LongAdder inFlight = new LongAdder();
+		private final Histogram latency = new Histogram();
+
+		private Route(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Marks the start of a request and returns its start time.
+		 */
+		long begin() {
+			inFlight.increment();
+			return System.nanoTime();
+		}
+
+		/**
+		 * Records a finished request, a status of -1 means no response was sent.
+		 */
+		void end(int status, long start) {
+			latency.record(System.nanoTime() - start);
+			inFlight.decrement();
+			increment(statuses, status);
+		}
+	}
+
+	static final class Upstream {
+		private final String host;
+		private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+		private final LongAdder bytes = new LongAdder();
+		private final Histogram latency = new Histogram();
+
+		private Upstream(String host) {
+			this.host = host;
+		}
+
+		void received(long length) {
+			bytes.add(length);
+		}
+
+		/**
+		 * Records a finished upstream request, a status of -1 means it failed without a response.
+		 */
+		void end(int status, long start) {
+			latency.record(System.nanoTime() - start);
+			increment(statuses, status);
+		}
+	}
+}
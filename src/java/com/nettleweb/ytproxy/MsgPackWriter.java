@@ -0,0 +1,143 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Encodes MessagePack. Maps and arrays need their size up front, so their headers are written as
+ * map32/array32 and patched when the container ends; the body is therefore never streamed.
+ */
+final class MsgPackWriter extends ResponseWriter {
+	private static final int map32 = 0xDF;
+	private static final int array32 = 0xDD;
+
+	// header offsets of the open containers
+	private int[] headers = new int[16];
+	private int depth = 0;
+
+	MsgPackWriter(@Nullable HttpExchange exchange, @Nullable Projection projection) {
+		super(exchange, projection, false);
+	}
+
+	@NotNull
+	@Override
+	String contentType() {
+		return "application/msgpack";
+	}
+
+	@Override
+	void writeBeginObject() throws IOException {
+		writeHeader(map32);
+	}
+
+	@Override
+	void writeEndObject(int size) {
+		patchHeader(size);
+	}
+
+	@Override
+	void writeBeginArray() throws IOException {
+		writeHeader(array32);
+	}
+
+	@Override
+	void writeEndArray(int size) {
+		patchHeader(size);
+	}
+
+	@Override
+	void writeName(@NotNull String name) throws IOException {
+		writeString(name);
+	}
+
+	@Override
+	void writeNull() throws IOException {
+		writeByte(0xC0);
+	}
+
+	@Override
+	void writeBoolean(boolean value) throws IOException {
+		writeByte(value ? 0xC3 : 0xC2);
+	}
+
+	@Override
+	void writeLong(long value) throws IOException {
+		if (value >= 0L) {
+			if (value < 0x80L) {
+				writeByte((int) value); // positive fixint
+			} else if (value < 0x100L) {
+				writeByte(0xCC);
+				writeByte((int) value);
+			} else if (value < 0x10000L) {
+				writeByte(0xCD);
+				writeBigEndian(value, 2);
+			} else if (value < 0x100000000L) {
+				writeByte(0xCE);
+				writeBigEndian(value, 4);
+			} else {
+				writeByte(0xCF);
+				writeBigEndian(value, 8);
+			}
+		} else {
+			if (value >= -32L) {
+				writeByte((int) value); // negative fixint
+			} else if (value >= Byte.MIN_VALUE) {
+				writeByte(0xD0);
+				writeByte((int) value);
+			} else if (value >= Short.MIN_VALUE) {
+				writeByte(0xD1);
+				writeBigEndian(value, 2);
+			} else if (value >= Integer.MIN_VALUE) {
+				writeByte(0xD2);
+				writeBigEndian(value, 4);
+			} else {
+				writeByte(0xD3);
+				writeBigEndian(value, 8);
+			}
+		}
+	}
+
+	@Override
+	void writeString(@NotNull String str) throws IOException {
+		byte[] scratch = scratch(str.length() * 3);
+		int length = JSONEscaper.encodeUTF8(str, scratch);
+
+		if (length < 32) {
+			writeByte(0xA0 | length); // fixstr
+		} else if (length < 0x100) {
+			writeByte(0xD9);
+			writeByte(length);
+		} else if (length < 0x10000) {
+			writeByte(0xDA);
+			writeBigEndian(length, 2);
+		} else {
+			writeByte(0xDB);
+			writeBigEndian(length, 4);
+		}
+
+		writeBytes(scratch, 0, length);
+	}
+
+	private void writeHeader(int type) throws IOException {
+		if (depth == headers.length)
+			headers = Arrays.copyOf(headers, depth << 1);
+
+		headers[depth++] = offset();
+		writeByte(type);
+		writeBigEndian(0L, 4);
+	}
+
+	private void patchHeader(int size) {
+		int offset = headers[--depth] + 1;
+		for (int shift = 24; shift >= 0; shift -= 8)
+			patch(offset++, size >>> shift);
+	}
+
+	private void writeBigEndian(long value, int length) throws IOException {
+		for (int shift = (length - 1) << 3; shift >= 0; shift -= 8)
+			writeByte((int) (value >>> shift));
+	}
+}
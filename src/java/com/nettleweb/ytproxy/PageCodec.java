@@ -0,0 +1,328 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Encodes continuation pages into URL-safe tokens.
+ * <p>
+ * Layout: {@code version, flags, [url], [id], [ids], [cookies], [body], tag} where strings and byte
+ * arrays are prefixed with their varint length, lists and maps with their varint size, and the tag is
+ * a truncated HMAC-SHA256 of everything before it.
+ */
+final class PageCodec {
+	public static final PageCodec instance = new PageCodec();
+
+	private static final int version = 1;
+	private static final int tagLength = 16;
+
+	// bodies above this size are deflated if that makes them smaller
+	private static final int deflateThreshold = 64;
+	// upper bound of an inflated body, tokens claiming more are rejected
+	private static final int maxBodyLength = 1 << 20;
+
+	private static final int hasUrl = 1;
+	private static final int hasId = 1 << 1;
+	private static final int hasIds = 1 << 2;
+	private static final int hasCookies = 1 << 3;
+	private static final int hasBody = 1 << 4;
+	private static final int bodyDeflated = 1 << 5;
+
+	private volatile Mac mac;
+
+	private PageCodec() {
+		byte[] key = new byte[32];
+		new SecureRandom().nextBytes(key);
+		setKey(key);
+	}
+
+	/**
+	 * Sets the HMAC key. Tokens signed with the previous key are no longer accepted.
+	 */
+	void setKey(@NotNull byte[] key) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			this.mac = mac;
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("Failed to initialize page token key", e);
+		}
+	}
+
+	/**
+	 * Derives the HMAC key from a secret shared between server instances.
+	 */
+	void setKey(@NotNull String secret) {
+		try {
+			setKey(MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Failed to initialize page token key", e);
+		}
+	}
+
+	@NotNull
+	String encode(@NotNull Page page) {
+		Output out = new Output();
+		String url = page.getUrl();
+		String id = page.getId();
+		List<String> ids = page.getIds();
+		Map<String, String> cookies = page.getCookies();
+		byte[] body = page.getBody();
+
+		int flags = 0;
+		if (url != null)
+			flags |= hasUrl;
+		if (id != null)
+			flags |= hasId;
+		if (ids != null)
+			flags |= hasIds;
+		if (cookies != null)
+			flags |= hasCookies;
+
+		byte[] deflated = null;
+		if (body != null) {
+			flags |= hasBody;
+			if (body.length >= deflateThreshold) {
+				deflated = deflate(body);
+				if (deflated.length < body.length)
+					flags |= bodyDeflated;
+				else
+					deflated = null;
+			}
+		}
+
+		out.write(version);
+		out.write(flags);
+		if (url != null)
+			out.writeString(url);
+		if (id != null)
+			out.writeString(id);
+		if (ids != null) {
+			out.writeVarInt(ids.size());
+			for (String str : ids)
+				out.writeString(str);
+		}
+		if (cookies != null) {
+			out.writeVarInt(cookies.size());
+			for (Map.Entry<String, String> e : cookies.entrySet()) {
+				out.writeString(e.getKey());
+				out.writeString(e.getValue());
+			}
+		}
+		if (body != null) {
+			if (deflated != null) {
+				out.writeVarInt(body.length);
+				out.writeBytes(deflated);
+			} else out.writeBytes(body);
+		}
+
+		byte[] tag = sign(out.data, out.size);
+		out.write(tag, 0, tagLength);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(out.data, out.size));
+	}
+
+	/**
+	 * Decodes a page token, or returns {@code null} if it is malformed or was not issued by this server.
+	 */
+	@Nullable
+	Page decode(@NotNull String token) {
+		try {
+			byte[] data = Base64.getUrlDecoder().decode(token);
+			int length = data.length - tagLength;
+			if (length < 2 || data[0] != version)
+				return null;
+
+			byte[] tag = sign(data, length);
+			if (!MessageDigest.isEqual(Arrays.copyOf(tag, tagLength), Arrays.copyOfRange(data, length, data.length)))
+				return null;
+
+			Input in = new Input(data, 2, length);
+			int flags = data[1];
+			String url = (flags & hasUrl) != 0 ? in.readString() : null;
+			String id = (flags & hasId) != 0 ? in.readString() : null;
+
+			List<String> ids = null;
+			if ((flags & hasIds) != 0) {
+				int size = in.readLength();
+				ids = new ArrayList<>(size);
+				for (int i = 0; i < size; i++)
+					ids.add(in.readString());
+			}
+
+			Map<String, String> cookies = null;
+			if ((flags & hasCookies) != 0) {
+				int size = in.readLength();
+				cookies = new LinkedHashMap<>(size << 1);
+				for (int i = 0; i < size; i++)
+					cookies.put(in.readString(), in.readString());
+			}
+
+			byte[] body = null;
+			if ((flags & hasBody) != 0) {
+				if ((flags & bodyDeflated) != 0) {
+					int size = in.readVarInt();
+					if (size < 0 || size > maxBodyLength)
+						return null;
+
+					body = inflate(in.readBytes(), size);
+				} else body = in.readBytes();
+			}
+
+			if (in.position != length)
+				return null;
+
+			return new Page(url, id, ids, cookies, body);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private byte[] sign(byte[] data, int length) {
+		Mac mac;
+		try {
+			mac = (Mac) this.mac.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+
+		mac.update(data, 0, length);
+		return mac.doFinal();
+	}
+
+	private static byte[] deflate(byte[] data) {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			byte[] buffer = new byte[data.length + 16];
+			int length = 0;
+			while (!deflater.finished() && length < buffer.length)
+				length += deflater.deflate(buffer, length, buffer.length - length);
+
+			return deflater.finished() ? Arrays.copyOf(buffer, length) : data;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static byte[] inflate(byte[] data, int size) throws DataFormatException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data);
+			byte[] buffer = new byte[size];
+			int length = 0;
+			while (length < size) {
+				int n = inflater.inflate(buffer, length, size - length);
+				if (n == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+
+				length += n;
+			}
+
+			if (length != size)
+				throw new DataFormatException("Truncated page body");
+
+			return buffer;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static final class Output {
+		private byte[] data = new byte[256];
+		private int size = 0;
+
+		private void ensure(int length) {
+			if (size + length > data.length)
+				data = Arrays.copyOf(data, Math.max(data.length << 1, size + length));
+		}
+
+		private void write(int b) {
+			ensure(1);
+			data[size++] = (byte) b;
+		}
+
+		private void write(byte[] src, int offset, int length) {
+			ensure(length);
+			System.arraycopy(src, offset, data, size, length);
+			size += length;
+		}
+
+		private void writeVarInt(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				data[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			data[size++] = (byte) value;
+		}
+
+		private void writeBytes(byte[] src) {
+			writeVarInt(src.length);
+			write(src, 0, src.length);
+		}
+
+		private void writeString(String str) {
+			writeBytes(str.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static final class Input {
+		private final byte[] data;
+		private final int limit;
+		private int position;
+
+		private Input(byte[] data, int position, int limit) {
+			this.data = data;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		private int readVarInt() throws IOException {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				if (position >= limit)
+					throw new EOFException();
+
+				int b = data[position++];
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+
+			throw new IOException("Malformed varint");
+		}
+
+		// a length that must fit in the remaining input
+		private int readLength() throws IOException {
+			int length = readVarInt();
+			if (length < 0 || length > limit - position)
+				throw new EOFException();
+
+			return length;
+		}
+
+		private byte[] readBytes() throws IOException {
+			int length = readLength();
+			byte[] bytes = Arrays.copyOfRange(data, position, position + length);
+			position += length;
+			return bytes;
+		}
+
+		private String readString() throws IOException {
+			int length = readLength();
+			String str = new String(data, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return str;
+		}
+	}
+}
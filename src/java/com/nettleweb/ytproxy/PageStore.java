@@ -0,0 +1,143 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.*;
+
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps continuation pages on the server and hands out short random IDs in their place. Pages are
+ * dropped in insertion order when they expire or when the memory budget is exceeded.
+ */
+final class PageStore {
+	public static final PageStore instance = new PageStore();
+
+	// distinguishes stored IDs from inline tokens, which always start with 'A'
+	static final char prefix = '_';
+
+	private static final long ttl = 1800000L;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private final Queue<String> order = new ConcurrentLinkedQueue<>();
+	private final AtomicLong size = new AtomicLong();
+	private final SecureRandom random = new SecureRandom();
+	private volatile long capacity = 0L;
+
+	private PageStore() {}
+
+	boolean isEnabled() {
+		return capacity > 0L;
+	}
+
+	void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict(capacity);
+	}
+
+	/**
+	 * Stores the page and returns its ID, or {@code null} if the store is disabled or the page is too
+	 * large for it.
+	 */
+	@Nullable
+	String put(@NotNull Page page) {
+		long capacity = this.capacity;
+		int size = sizeOf(page);
+		if (size > capacity >> 4)
+			return null;
+
+		byte[] bytes = new byte[12];
+		random.nextBytes(bytes);
+		String id = prefix + Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+		entries.put(id, new Entry(page, size, System.currentTimeMillis() + ttl));
+		order.add(id);
+		if (this.size.addAndGet(size) > capacity)
+			evict(capacity);
+		else
+			expire();
+
+		return id;
+	}
+
+	@Nullable
+	Page get(@NotNull String id) {
+		Entry entry = entries.get(id);
+		if (entry == null)
+			return null;
+
+		if (entry.expires <= System.currentTimeMillis()) {
+			remove(id);
+			return null;
+		}
+
+		return entry.page;
+	}
+
+	private void remove(String id) {
+		Entry entry = entries.remove(id);
+		if (entry != null)
+			size.addAndGet(-entry.size);
+	}
+
+	// drops expired entries from the head of the queue
+	private void expire() {
+		long now = System.currentTimeMillis();
+		String id;
+		while ((id = order.peek()) != null) {
+			Entry entry = entries.get(id);
+			if (entry != null && entry.expires > now)
+				break;
+			if (order.remove(id))
+				remove(id);
+		}
+	}
+
+	private void evict(long capacity) {
+		expire();
+
+		String id;
+		while (size.get() > capacity && (id = order.poll()) != null)
+			remove(id);
+	}
+
+	// rough heap footprint of the page
+	private static int sizeOf(Page page) {
+		int size = 128;
+		String url = page.getUrl();
+		if (url != null)
+			size += url.length() << 1;
+		String id = page.getId();
+		if (id != null)
+			size += id.length() << 1;
+		List<String> ids = page.getIds();
+		if (ids != null) {
+			for (String str : ids)
+				size += 48 + (str.length() << 1);
+		}
+		Map<String, String> cookies = page.getCookies();
+		if (cookies != null) {
+			for (Map.Entry<String, String> e : cookies.entrySet())
+				size += 96 + ((e.getKey().length() + e.getValue().length()) << 1);
+		}
+		byte[] body = page.getBody();
+		if (body != null)
+			size += body.length;
+
+		return size;
+	}
+
+	private static final class Entry {
+		private final Page page;
+		private final int size;
+		private final long expires;
+
+		private Entry(Page page, int size, long expires) {
+			this.page = page;
+			this.size = size;
+			this.expires = expires;
+		}
+	}
+}
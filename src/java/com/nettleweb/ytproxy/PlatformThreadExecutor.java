@@ -0,0 +1,40 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+final class PlatformThreadExecutor extends ExchangeExecutor {
+	private final ExecutorService pool;
+
+	PlatformThreadExecutor(int concurrency, int maxQueue) {
+		super(concurrency, maxQueue);
+		// one thread per worker slot, so the queue only holds a task while a thread is being handed back
+		this.pool = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), DefaultThreadFactory.instance);
+	}
+
+	@Override
+	void work(@NotNull AdmissionControl.Task task) throws IOException {
+		Future<?> future = pool.submit(() -> {
+			task.run();
+			return null;
+		});
+
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted");
+		} catch (ExecutionException e) {
+			switch (e.getCause()) {
+				case IOException ex -> throw ex;
+				case RuntimeException ex -> throw ex;
+				case Error ex -> throw ex;
+				default -> throw new IOException(e.getCause());
+			}
+		}
+	}
+}
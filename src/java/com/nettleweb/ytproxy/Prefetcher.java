@@ -0,0 +1,173 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fetches the page following the one just served in the background, so that the client's next
+ * "load more" request can be answered from memory. Fetches run under the same {@link SingleFlight}
+ * key as the request they anticipate, so a request arriving mid-fetch waits for it instead of
+ * starting another one.
+ */
+final class Prefetcher {
+	public static final Prefetcher instance = new Prefetcher();
+
+	private static final long ttl = 60000L;
+	private static final int maxEntries = 1024;
+
+	private final Map<String, Parked> entries = new ConcurrentHashMap<>();
+	private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "Prefetcher");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final LongAdder started = new LongAdder();
+	private final LongAdder skipped = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder wasted = new LongAdder();
+
+	private volatile Semaphore permits = null;
+
+	private Prefetcher() {}
+
+	/**
+	 * Sets the maximum number of concurrent speculative fetches, 0 disables prefetching.
+	 */
+	void setConcurrency(int concurrency) {
+		this.permits = concurrency > 0 ? new Semaphore(concurrency) : null;
+	}
+
+	/**
+	 * Schedules a fetch of the given page, to be picked up with {@link #take} under the same key and
+	 * token. Skipped if the fetch budget is exhausted.
+	 */
+	void prefetch(@NotNull String key, @NotNull String token, @NotNull Page page, @NotNull Fetcher fetcher,
+	              @NotNull ResponseFormat format, @Nullable Projection projection) {
+		Semaphore permits = this.permits;
+		if (permits == null || entries.containsKey(HTTPHandlerImpl.getVariantKey(key + ":" + token, format,
+				projection)))
+			return;
+
+		if (!permits.tryAcquire()) {
+			skipped.increment();
+			return;
+		}
+
+		started.increment();
+		try {
+			executor.execute(() -> {
+				try {
+					fetch(key, token, page, fetcher, format, projection);
+				} catch (Exception e) {
+					failed.increment();
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			failed.increment();
+		}
+	}
+
+	/**
+	 * Returns and removes the prefetched response for the given page token, and starts prefetching the
+	 * page after it.
+	 */
+	@Nullable
+	ResponseCache.Entry take(@NotNull String key, @NotNull String token, @NotNull ResponseFormat format,
+	                         @Nullable Projection projection) {
+		Parked parked = entries.remove(HTTPHandlerImpl.getVariantKey(key + ":" + token, format, projection));
+		if (parked == null)
+			return null;
+
+		if (parked.entry.expires <= System.currentTimeMillis()) {
+			wasted.increment();
+			return null;
+		}
+
+		hits.increment();
+		if (parked.next != null)
+			prefetch(key, parked.nextToken, parked.next, parked.fetcher, format, projection);
+
+		return parked.entry;
+	}
+
+	long started() {
+		return started.sum();
+	}
+
+	long skipped() {
+		return skipped.sum();
+	}
+
+	long failed() {
+		return failed.sum();
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long wasted() {
+		return wasted.sum();
+	}
+
+	private void fetch(String key, String token, Page page, Fetcher fetcher, ResponseFormat format,
+	                   Projection projection) throws Exception {
+		ListExtractor.InfoItemsPage<?> items = SingleFlight.instance.run(key + ":" + token, () -> fetcher.fetch(page));
+
+		Page next = items.hasNextPage() ? items.getNextPage() : null;
+		String nextToken = next == null ? null : HTTPHandlerImpl.encodePage(next);
+		ResponseWriter out = format.newWriter(null, projection);
+		HTTPHandlerImpl.encodeItemsPage(out, items, nextToken);
+
+		ResponseCache.Entry entry = new ResponseCache.Entry(out.toByteArray(), System.currentTimeMillis() + ttl);
+		sweep();
+		entries.put(HTTPHandlerImpl.getVariantKey(key + ":" + token, format, projection), new Parked(entry, next,
+				nextToken, fetcher));
+	}
+
+	// counts and drops the entries nobody asked for in time
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Parked> e : entries.entrySet()) {
+			if (e.getValue().entry.expires <= now && entries.remove(e.getKey(), e.getValue()))
+				wasted.increment();
+		}
+
+		// still full, drop arbitrary ones
+		Iterator<Map.Entry<String, Parked>> iterator = entries.entrySet().iterator();
+		while (entries.size() >= maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			wasted.increment();
+		}
+	}
+
+	@FunctionalInterface
+	interface Fetcher {
+		ListExtractor.InfoItemsPage<?> fetch(@NotNull Page page) throws Exception;
+	}
+
+	private static final class Parked {
+		private final ResponseCache.Entry entry;
+		private final Page next;
+		private final String nextToken;
+		private final Fetcher fetcher;
+
+		private Parked(ResponseCache.Entry entry, Page next, String nextToken, Fetcher fetcher) {
+			this.entry = entry;
+			this.next = next;
+			this.nextToken = nextToken;
+			this.fetcher = fetcher;
+		}
+	}
+}
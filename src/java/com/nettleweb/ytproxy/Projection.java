@@ -0,0 +1,175 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+
+/**
+ * The parts of a response selected by the {@code fields} and {@code thumb} query parameters.
+ * <p>
+ * {@code fields} is a comma separated list of field paths, where {@code a.b} selects {@code b} within
+ * {@code a} and {@code a(b,c)} selects {@code b} and {@code c} within {@code a}. Selections apply to
+ * every element of an array. {@code thumb} reduces image lists to the {@code best} or {@code smallest}
+ * image, or to the one closest to the given width.
+ */
+final class Projection {
+	static final int thumbAll = 0;
+	static final int thumbSmallest = -1;
+	static final int thumbBest = Integer.MAX_VALUE;
+
+	// a node without children selects everything below it
+	private static final Node all = new Node();
+
+	private final Node root;
+	private final int thumb;
+	private final String key;
+
+	private Projection(Node root, int thumb, String key) {
+		this.root = root;
+		this.thumb = thumb;
+		this.key = key;
+	}
+
+	/**
+	 * Parses the query parameters, or returns {@code null} if neither is given.
+	 *
+	 * @throws IllegalArgumentException if either value is malformed
+	 */
+	@Nullable
+	static Projection parse(@Nullable String fields, @Nullable String thumb) {
+		boolean hasFields = fields != null && !fields.isEmpty();
+		boolean hasThumb = thumb != null && !thumb.isEmpty();
+		if (!hasFields && !hasThumb)
+			return null;
+
+		Node root = null;
+		if (hasFields) {
+			Parser parser = new Parser(fields);
+			root = new Node();
+			parser.parseList(root);
+			if (parser.position != fields.length())
+				throw new IllegalArgumentException("Unexpected character at " + parser.position + ": " + fields);
+		}
+
+		int width = thumbAll;
+		if (hasThumb) {
+			width = switch (thumb) {
+				case "best" -> thumbBest;
+				case "smallest" -> thumbSmallest;
+				default -> {
+					int value = Integer.parseInt(thumb);
+					if (value <= 0)
+						throw new IllegalArgumentException("Invalid thumbnail width: " + thumb);
+					yield value;
+				}
+			};
+		}
+
+		return new Projection(root, width, (hasFields ? fields : "") + "|" + (hasThumb ? thumb : ""));
+	}
+
+	/**
+	 * Returns the image selection, {@link #thumbAll}, {@link #thumbSmallest}, {@link #thumbBest} or a
+	 * width in pixels.
+	 */
+	int thumb() {
+		return thumb;
+	}
+
+	/**
+	 * Returns a string identifying this projection, for use in cache keys.
+	 */
+	@NotNull
+	String key() {
+		return key;
+	}
+
+	/**
+	 * Returns the field selection, or {@code null} if all fields are selected.
+	 */
+	@Nullable
+	Node root() {
+		return root;
+	}
+
+	static final class Node {
+		private Map<String, Node> children = null;
+
+		/**
+		 * Returns the selection within the given field, or {@code null} if it is not selected.
+		 */
+		@Nullable
+		Node get(@NotNull String name) {
+			return children == null ? this : children.get(name);
+		}
+
+		private Node add(String name) {
+			if (children == null)
+				children = new HashMap<>();
+
+			Node node = children.get(name);
+			if (node == null)
+				children.put(name, node = new Node());
+			else if (node.children == null)
+				return null; // already selected as a whole
+
+			return node;
+		}
+
+		private void addAll(String name) {
+			if (children == null)
+				children = new HashMap<>();
+
+			children.put(name, all);
+		}
+	}
+
+	private static final class Parser {
+		private final String str;
+		private int position = 0;
+
+		private Parser(String str) {
+			this.str = str;
+		}
+
+		private void parseList(Node parent) {
+			parseItem(parent);
+			while (position < str.length() && str.charAt(position) == ',') {
+				position++;
+				parseItem(parent);
+			}
+		}
+
+		private void parseItem(Node parent) {
+			String name = parseName();
+
+			if (position < str.length() && str.charAt(position) == '.') {
+				position++;
+				Node node = parent.add(name);
+				parseItem(node == null ? new Node() : node);
+			} else if (position < str.length() && str.charAt(position) == '(') {
+				position++;
+				Node node = parent.add(name);
+				parseList(node == null ? new Node() : node);
+				if (position >= str.length() || str.charAt(position) != ')')
+					throw new IllegalArgumentException("Missing ')' at " + position + ": " + str);
+				position++;
+			} else parent.addAll(name);
+		}
+
+		private String parseName() {
+			int start = position;
+			while (position < str.length()) {
+				char ch = str.charAt(position);
+				if (ch == ',' || ch == '.' || ch == '(' || ch == ')')
+					break;
+				position++;
+			}
+
+			if (position == start)
+				throw new IllegalArgumentException("Missing field name at " + start + ": " + str);
+
+			return str.substring(start, position).trim();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-client token buckets for each endpoint. A bucket is a single "theoretical arrival time" that
+ * moves forward by one emission interval per request and is updated with a CAS, which behaves like a
+ * token bucket refilled at the given rate without storing a token count or a refill timestamp.
+ * Buckets are spread over independent maps, and one of them is swept for idle (full) buckets every
+ * few thousand requests, so the table stays small without a background thread.
+ */
+final class RateLimiter {
+	public static final RateLimiter instance = new RateLimiter();
+
+	private static final int stripeCount = 64;
+	private static final int sweepInterval = 4096;
+
+	private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+	private final AtomicInteger sweepCounter = new AtomicInteger();
+	private final LongAdder limited = new LongAdder();
+
+	private volatile String clientHeader = null;
+
+	private RateLimiter() {
+		setLimit("/search", 2d, 20);
+		setLimit("/stream", 10d, 50);
+		setLimit("/streams", 1d, 5);
+		setLimit("/channel", 2d, 20);
+		setLimit("/playlist", 2d, 20);
+		setLimit("/trending", 2d, 20);
+	}
+
+	/**
+	 * Allows the given number of requests per second with bursts of up to burst requests, or removes
+	 * the limit if the rate is 0.
+	 */
+	void setLimit(@NotNull String path, double rate, int burst) {
+		if (rate <= 0d) {
+			limits.remove(path);
+			return;
+		}
+
+		long interval = Math.max((long) (1000000000d / rate), 1L);
+		limits.put(path, new Limit(interval, interval * Math.max(burst, 1)));
+	}
+
+	/**
+	 * Parses a limit given as {@code <path>=<rate>[/<burst>]}, the burst defaults to ten seconds' worth
+	 * of requests.
+	 */
+	void setLimit(@NotNull String spec) {
+		int i = spec.indexOf('=');
+		if (i <= 0)
+			throw new IllegalArgumentException("Invalid rate limit: " + spec);
+
+		String path = spec.substring(0, i);
+		String value = spec.substring(i + 1);
+		int j = value.indexOf('/');
+
+		double rate = Double.parseDouble(j < 0 ? value : value.substring(0, j));
+		int burst = j < 0 ? (int) Math.ceil(rate * 10d) : Integer.parseInt(value.substring(j + 1));
+		if (!(rate >= 0d) || burst < 0)
+			throw new IllegalArgumentException("Invalid rate limit: " + spec);
+
+		setLimit(path.charAt(0) == '/' ? path : "/" + path, rate, burst);
+	}
+
+	/**
+	 * Identifies clients by the given request header, set by a reverse proxy, instead of the remote
+	 * address. For a list like X-Forwarded-For the last entry, added by the nearest proxy, is used.
+	 */
+	void setClientHeader(@Nullable String name) {
+		this.clientHeader = name;
+	}
+
+	/**
+	 * Counts a request against the client's bucket. Returns 0 if it may proceed, otherwise the number
+	 * of seconds until it would be allowed.
+	 */
+	long acquire(@NotNull HttpExchange exchange, @NotNull String path) {
+		Limit limit = limits.get(path);
+		if (limit == null)
+			return 0L;
+
+		String client = getClient(exchange);
+		if (client == null)
+			return 0L;
+
+		long now = System.nanoTime();
+		if ((sweepCounter.incrementAndGet() & (sweepInterval - 1)) == 0)
+			sweep(now);
+
+		Map<String, AtomicLong> stripe = limit.stripes[(client.hashCode() & 0x7FFFFFFF) % stripeCount];
+		AtomicLong tat = stripe.get(client);
+		if (tat == null) {
+			AtomicLong value = new AtomicLong(now);
+			tat = stripe.putIfAbsent(client, value);
+			if (tat == null)
+				tat = value;
+		}
+
+		for (; ; ) {
+			long current = tat.get();
+			long next = Math.max(current, now) + limit.interval;
+			long excess = next - now - limit.tolerance;
+			if (excess > 0L) {
+				limited.increment();
+				return Math.max(TimeUnit.NANOSECONDS.toSeconds(excess + 999999999L), 1L);
+			}
+
+			if (tat.compareAndSet(current, next))
+				return 0L;
+		}
+	}
+
+	long limited() {
+		return limited.sum();
+	}
+
+	int clients() {
+		int clients = 0;
+		for (Limit limit : limits.values()) {
+			for (Map<String, AtomicLong> stripe : limit.stripes)
+				clients += stripe.size();
+		}
+
+		return clients;
+	}
+
+	@Nullable
+	private String getClient(@NotNull HttpExchange exchange) {
+		String header = clientHeader;
+		if (header != null) {
+			String value = exchange.getRequestHeaders().getFirst(header);
+			if (value != null) {
+				value = value.substring(value.lastIndexOf(',') + 1).trim();
+				if (!value.isEmpty())
+					return value;
+			}
+		}
+
+		InetSocketAddress remote = exchange.getRemoteAddress();
+		InetAddress address = remote == null ? null : remote.getAddress();
+		if (address == null)
+			return null;
+
+		// without a client header a local reverse proxy would make everyone share its bucket
+		if (header == null && address.isLoopbackAddress())
+			return null;
+
+		if (address instanceof Inet6Address) {
+			// a single client usually owns a whole /64
+			byte[] bytes = address.getAddress();
+			return HexFormat.of().formatHex(bytes, 0, 8);
+		}
+
+		return address.getHostAddress();
+	}
+
+	/**
+	 * Drops the full buckets of one stripe, which are no different from a new one. A request racing
+	 * with the removal may get one extra request through, which is harmless.
+	 */
+	private void sweep(long now) {
+		int index = Math.floorMod(sweepCounter.get() / sweepInterval, stripeCount);
+		for (Limit limit : limits.values()) {
+			Map<String, AtomicLong> stripe = limit.stripes[index];
+			for (Map.Entry<String, AtomicLong> e : stripe.entrySet()) {
+				if (e.getValue().get() <= now)
+					stripe.remove(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	private static final class Limit {
+		final long interval;
+		final long tolerance;
+
+		@SuppressWarnings("unchecked")
+		final Map<String, AtomicLong>[] stripes = new Map[stripeCount];
+
+		Limit(long interval, long tolerance) {
+			this.interval = interval;
+			this.tolerance = tolerance;
+			for (int i = 0; i < stripeCount; i++)
+				stripes[i] = new ConcurrentHashMap<>();
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.downloader.*;
+import org.schabi.newpipe.extractor.exceptions.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/**
+ * Records upstream exchanges made through another downloader to a file, or serves them back from one
+ * without touching the network, so the whole server can be run repeatably against real extractor
+ * behaviour.
+ * <p>
+ * Requests are matched on method, URL and body with the per-request nonces removed, and fall back to
+ * the exchanges recorded for the same method and path, in recorded order. Each record is deflated on
+ * its own and appended as it completes, so a store survives the recording process being killed.
+ */
+final class RecordedDownloader extends Downloader {
+	static final String fileName = "upstream.rec";
+
+	private static final int magic = 0x59545231; // "YTR1"
+
+	// random on every request, so never part of the key
+	private static final Set<String> volatileParams = Set.of("cpn", "t", "rn");
+	private static final Pattern nonce = Pattern.compile("\"cpn\"\\s*:\\s*\"[^\"]*\"");
+
+	// differ between runs without affecting what the extractor does with the response
+	private static final Set<String> volatileHeaders = Set.of("date", "expires", "age", "alt-svc", "report-to",
+			"nel", "server", "server-timing", "x-xss-protection", "content-length", "content-encoding",
+			"transfer-encoding", "connection", "keep-alive");
+
+	private final Downloader delegate;
+	private final DataOutputStream out;
+	private final Map<String, Replay> exchanges;
+	private final Map<String, Replay> paths;
+	private final long latency;
+
+	private RecordedDownloader(@Nullable Downloader delegate, @Nullable DataOutputStream out,
+	                           @Nullable Map<String, Replay> exchanges, @Nullable Map<String, Replay> paths,
+	                           long latency) {
+		this.delegate = delegate;
+		this.out = out;
+		this.exchanges = exchanges;
+		this.paths = paths;
+		this.latency = latency;
+	}
+
+	/**
+	 * Passes every request on to the given downloader and appends the exchange to the store in the
+	 * given directory.
+	 */
+	@NotNull
+	static RecordedDownloader record(@NotNull Downloader delegate, @NotNull Path dir) throws IOException {
+		Files.createDirectories(dir);
+		Path file = dir.resolve(fileName);
+		boolean exists = Files.exists(file) && Files.size(file) > 0L;
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND), 65536));
+		if (!exists) {
+			out.writeInt(magic);
+			out.flush();
+		}
+
+		return new RecordedDownloader(delegate, out, null, null, 0L);
+	}
+
+	/**
+	 * Serves requests from the store in the given directory.
+	 *
+	 * @param latency delay of every response in milliseconds, or -1 to replay the recorded durations
+	 */
+	@NotNull
+	static RecordedDownloader replay(@NotNull Path dir, long latency) throws IOException {
+		Map<String, List<Exchange>> exchanges = new HashMap<>();
+		Map<String, List<Exchange>> paths = new HashMap<>();
+		List<Exchange> list = read(dir);
+		for (Exchange exchange : list) {
+			exchanges.computeIfAbsent(key(exchange.method, exchange.url, exchange.requestBody),
+					k -> new ArrayList<>()).add(exchange);
+			paths.computeIfAbsent(exchange.method + " " + path(exchange.url), k -> new ArrayList<>()).add(exchange);
+		}
+
+		Console.log("Replaying " + list.size() + " upstream exchanges from " + dir);
+		return new RecordedDownloader(null, null, Replay.of(exchanges), Replay.of(paths), latency);
+	}
+
+	/**
+	 * Returns the request bodies in the store in the given directory, in recorded order, skipping
+	 * requests without one.
+	 */
+	@NotNull
+	static List<String> requestBodies(@NotNull Path dir) throws IOException {
+		List<String> bodies = new ArrayList<>();
+		for (Exchange exchange : read(dir)) {
+			if (exchange.requestBody != null)
+				bodies.add(new String(exchange.requestBody, StandardCharsets.UTF_8));
+		}
+
+		return bodies;
+	}
+
+	@NotNull
+	private static List<Exchange> read(@NotNull Path dir) throws IOException {
+		List<Exchange> exchanges = new ArrayList<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(
+				dir.resolve(fileName)), 65536))) {
+			if (in.readInt() != magic)
+				throw new IOException("Not an upstream recording: " + dir.resolve(fileName));
+
+			for (;;) {
+				byte[] data;
+				try {
+					data = new byte[in.readInt()];
+					in.readFully(data);
+				} catch (EOFException e) {
+					// the end, or a record cut short by the recording process exiting
+					break;
+				}
+
+				exchanges.add(Exchange.read(data));
+			}
+		}
+
+		return exchanges;
+	}
+
+	@Override
+	public Response execute(@NotNull Request request) throws IOException, ReCaptchaException {
+		if (delegate == null)
+			return replay(request);
+
+		long start = System.nanoTime();
+		Response response = delegate.execute(request);
+		long duration = (System.nanoTime() - start) / 1000000L;
+
+		Exchange exchange = new Exchange(request.httpMethod(), request.url(), normalize(request.headers(), false),
+				request.dataToSend(), duration, response.responseCode(), response.responseMessage(),
+				normalize(response.responseHeaders(), true), response.responseBody(), response.latestUrl());
+
+		byte[] data = exchange.write();
+		synchronized (out) {
+			out.writeInt(data.length);
+			out.write(data);
+			out.flush();
+		}
+
+		return response;
+	}
+
+	@NotNull
+	private Response replay(@NotNull Request request) throws IOException {
+		String method = request.httpMethod();
+		String url = request.url();
+		String host = URI.create(url).getHost();
+		Metrics.Upstream metrics = Metrics.instance.upstream(host);
+		UpstreamEvent event = new UpstreamEvent();
+		event.begin();
+		long start = System.nanoTime();
+		long length = 0L;
+		int status = -1;
+
+		try {
+			Replay replay = exchanges.get(key(method, url, request.dataToSend()));
+			if (replay == null)
+				replay = paths.get(method + " " + path(url));
+			if (replay == null)
+				throw new IOException("No recorded response for " + method + " " + url);
+
+			Exchange exchange = replay.next();
+			long delay = latency < 0L ? exchange.duration : latency;
+			if (delay > 0L) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+
+			String body = exchange.body;
+			length = body == null ? 0L : body.length();
+			metrics.received(length);
+			status = exchange.status;
+
+			return new Response(exchange.status, exchange.message, exchange.responseHeaders, body,
+					exchange.latestUrl);
+		} finally {
+			metrics.end(status, start);
+			RequestTiming.upstream(method, url, status, start, System.nanoTime());
+
+			if (event.shouldCommit()) {
+				event.method = method;
+				event.host = host;
+				event.status = status;
+				event.bytes = length;
+				event.commit();
+			}
+		}
+	}
+
+	@NotNull
+	private static Map<String, List<String>> normalize(@Nullable Map<String, List<String>> headers,
+	                                                   boolean response) {
+		Map<String, List<String>> result = new TreeMap<>();
+		if (headers == null)
+			return result;
+
+		for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+			// HttpURLConnection puts the status line under a null name
+			String name = e.getKey();
+			if (name == null)
+				continue;
+
+			name = name.toLowerCase(Locale.ROOT);
+			if (response && volatileHeaders.contains(name))
+				continue;
+
+			result.computeIfAbsent(name, k -> new ArrayList<>()).addAll(e.getValue());
+		}
+
+		return result;
+	}
+
+	@NotNull
+	private static String key(@NotNull String method, @NotNull String url, @Nullable byte[] body) {
+		StringBuilder str = new StringBuilder(method.length() + url.length() + (body == null ? 2 :
+				body.length + 2));
+		str.append(method).append(' ');
+
+		int i = url.indexOf('?');
+		if (i < 0) {
+			str.append(url);
+		} else {
+			str.append(url, 0, i + 1);
+			for (String part : url.substring(i + 1).split("&")) {
+				int j = part.indexOf('=');
+				if (!volatileParams.contains(j < 0 ? part : part.substring(0, j)))
+					str.append(part).append('&');
+			}
+		}
+
+		str.append('\n');
+		if (body != null)
+			str.append(nonce.matcher(new String(body, StandardCharsets.UTF_8)).replaceAll("\"cpn\":\"\""));
+
+		return str.toString();
+	}
+
+	@NotNull
+	private static String path(@NotNull String url) {
+		int i = url.indexOf('?');
+		return i < 0 ? url : url.substring(0, i);
+	}
+
+	// the exchanges recorded under one key, handed out in order and then from the start again
+	private static final class Replay {
+		private final Exchange[] exchanges;
+		private final AtomicInteger next = new AtomicInteger();
+
+		private Replay(Exchange[] exchanges) {
+			this.exchanges = exchanges;
+		}
+
+		private static Map<String, Replay> of(Map<String, List<Exchange>> map) {
+			Map<String, Replay> result = new HashMap<>(map.size() * 2);
+			for (Map.Entry<String, List<Exchange>> e : map.entrySet())
+				result.put(e.getKey(), new Replay(e.getValue().toArray(new Exchange[0])));
+
+			return result;
+		}
+
+		private Exchange next() {
+			return exchanges[Math.floorMod(next.getAndIncrement(), exchanges.length)];
+		}
+	}
+
+	private static final class Exchange {
+		private final String method;
+		private final String url;
+		private final Map<String, List<String>> requestHeaders;
+		private final byte[] requestBody;
+		private final long duration;
+		private final int status;
+		private final String message;
+		private final Map<String, List<String>> responseHeaders;
+		private final String body;
+		private final String latestUrl;
+
+		private Exchange(String method, String url, Map<String, List<String>> requestHeaders, byte[] requestBody,
+		                 long duration, int status, String message, Map<String, List<String>> responseHeaders,
+		                 String body, String latestUrl) {
+			this.method = method;
+			this.url = url;
+			this.requestHeaders = requestHeaders;
+			this.requestBody = requestBody;
+			this.duration = duration;
+			this.status = status;
+			this.message = message;
+			this.responseHeaders = responseHeaders;
+			this.body = body;
+			this.latestUrl = latestUrl;
+		}
+
+		private byte[] write() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(body == null ? 256 : body.length() / 4 + 256);
+			try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(buf))) {
+				writeString(out, method);
+				writeString(out, url);
+				writeHeaders(out, requestHeaders);
+				writeBytes(out, requestBody);
+				out.writeLong(duration);
+				out.writeInt(status);
+				writeString(out, message);
+				writeHeaders(out, responseHeaders);
+				writeBytes(out, body == null ? null : body.getBytes(StandardCharsets.UTF_8));
+				writeString(out, latestUrl);
+			}
+
+			return buf.toByteArray();
+		}
+
+		private static Exchange read(byte[] data) throws IOException {
+			try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+				String method = readString(in);
+				String url = readString(in);
+				Map<String, List<String>> requestHeaders = readHeaders(in);
+				byte[] requestBody = readBytes(in);
+				long duration = in.readLong();
+				int status = in.readInt();
+				String message = readString(in);
+				Map<String, List<String>> responseHeaders = readHeaders(in);
+				byte[] body = readBytes(in);
+				String latestUrl = readString(in);
+
+				return new Exchange(method, url, requestHeaders, requestBody, duration, status, message,
+						responseHeaders, body == null ? null : new String(body, StandardCharsets.UTF_8), latestUrl);
+			}
+		}
+
+		private static void writeHeaders(DataOutputStream out, Map<String, List<String>> headers)
+				throws IOException {
+			out.writeInt(headers.size());
+			for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+				writeString(out, e.getKey());
+				out.writeInt(e.getValue().size());
+				for (String value : e.getValue())
+					writeString(out, value);
+			}
+		}
+
+		private static Map<String, List<String>> readHeaders(DataInputStream in) throws IOException {
+			int size = in.readInt();
+			Map<String, List<String>> headers = new TreeMap<>();
+			for (int i = 0; i < size; i++) {
+				String name = readString(in);
+				int count = in.readInt();
+				List<String> values = new ArrayList<>(count);
+				for (int j = 0; j < count; j++)
+					values.add(readString(in));
+
+				headers.put(name, values);
+			}
+
+			return headers;
+		}
+
+		private static void writeString(DataOutputStream out, @Nullable String str) throws IOException {
+			writeBytes(out, str == null ? null : str.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Nullable
+		private static String readString(DataInputStream in) throws IOException {
+			byte[] data = readBytes(in);
+			return data == null ? null : new String(data, StandardCharsets.UTF_8);
+		}
+
+		private static void writeBytes(DataOutputStream out, @Nullable byte[] data) throws IOException {
+			if (data == null) {
+				out.writeInt(-1);
+			} else {
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+
+		@Nullable
+		private static byte[] readBytes(DataInputStream in) throws IOException {
+			int length = in.readInt();
+			if (length < 0)
+				return null;
+
+			byte[] data = new byte[length];
+			in.readFully(data);
+			return data;
+		}
+	}
+}
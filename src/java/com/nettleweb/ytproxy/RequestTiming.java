@@ -0,0 +1,184 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Where the time of one request went: waiting for admission and a worker, upstream requests, extraction and
+ * encoding. The context belongs to the thread handling the exchange; work done for it on other
+ * threads must {@link #attach} it. Sent to the client as a Server-Timing header, and logged with the
+ * upstream timeline when the request was slow.
+ */
+final class RequestTiming {
+	private static final ThreadLocal<RequestTiming> current = new ThreadLocal<>();
+
+	private static volatile long slowThreshold = 0L;
+
+	private final long start = System.nanoTime();
+	private final long accepted;
+	private volatile long queued;
+	private final AtomicInteger upstreamCount = new AtomicInteger();
+	private final AtomicLong upstreamTime = new AtomicLong();
+	private final AtomicLong extractTime = new AtomicLong();
+	private final AtomicLong encodeTime = new AtomicLong();
+	private final AtomicLong blockedTime = new AtomicLong();
+
+	// only kept for the slow request log
+	private final List<String> timeline = slowThreshold > 0L ? Collections.synchronizedList(new ArrayList<>()) :
+			null;
+
+	private RequestTiming(long queued) {
+		this.accepted = start - queued;
+		this.queued = queued;
+	}
+
+	/**
+	 * Logs requests taking longer than the given number of milliseconds, 0 disables the log.
+	 */
+	static void setSlowThreshold(long threshold) {
+		slowThreshold = threshold * 1000000L;
+	}
+
+	/**
+	 * Starts timing the exchange handled by the current thread.
+	 *
+	 * @param queued how long the exchange waited for its thread to start in nanoseconds
+	 */
+	@NotNull
+	static RequestTiming begin(long queued) {
+		RequestTiming timing = new RequestTiming(Math.max(queued, 0L));
+		current.set(timing);
+		return timing;
+	}
+
+	@Nullable
+	static RequestTiming current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes the current thread contribute to the given context, until attached to another one.
+	 */
+	static void attach(@Nullable RequestTiming timing) {
+		if (timing == null)
+			current.remove();
+		else
+			current.set(timing);
+	}
+
+	/**
+	 * Sets how long the request waited before its work started, including the waits for admission and
+	 * a worker.
+	 */
+	static void queued(long nanos) {
+		RequestTiming timing = current.get();
+		if (timing != null)
+			timing.queued = Math.max(nanos, 0L);
+	}
+
+	static void upstream(@NotNull String method, @NotNull String url, int status, long start, long end) {
+		RequestTiming timing = current.get();
+		if (timing == null)
+			return;
+
+		timing.upstreamCount.incrementAndGet();
+		timing.upstreamTime.addAndGet(end - start);
+		if (timing.timeline != null)
+			timing.timeline.add(String.format("  +%8.1f ms %8.1f ms %s %s %s", (start - timing.start) / 1e6d,
+					(end - start) / 1e6d, status < 0 ? "ERR" : Integer.toString(status), method, url));
+	}
+
+	static void extracted(long nanos) {
+		RequestTiming timing = current.get();
+		if (timing != null)
+			timing.extractTime.addAndGet(nanos);
+	}
+
+	static void encoded(long nanos) {
+		RequestTiming timing = current.get();
+		if (timing != null)
+			timing.encodeTime.addAndGet(nanos);
+	}
+
+	/**
+	 * Records time spent waiting on work that is accounted for elsewhere, such as the extractions of
+	 * a batch, which is then not counted as encoding.
+	 */
+	static void blocked(long nanos) {
+		RequestTiming timing = current.get();
+		if (timing != null)
+			timing.blockedTime.addAndGet(nanos);
+	}
+
+	static long blocked() {
+		RequestTiming timing = current.get();
+		return timing == null ? 0L : timing.blockedTime.get();
+	}
+
+	/**
+	 * Sets the Server-Timing header of the current exchange.
+	 *
+	 * @param bytes   the size of the body, or -1 if not known yet
+	 * @param pending encoding time not recorded yet, of a body still being written
+	 */
+	static void setHeader(@NotNull HttpExchange exchange, long bytes, long pending) {
+		RequestTiming timing = current.get();
+		if (timing != null)
+			exchange.getResponseHeaders().set("Server-Timing", timing.header(bytes, pending));
+	}
+
+	long queued() {
+		return queued;
+	}
+
+	/**
+	 * Ends timing of the exchange handled by the current thread, logging it if it was slow.
+	 */
+	void end(@NotNull HttpExchange exchange) {
+		current.remove();
+
+		long threshold = slowThreshold;
+		long total = System.nanoTime() - accepted;
+		if (threshold <= 0L || total < threshold)
+			return;
+
+		StringBuilder str = new StringBuilder(256);
+		str.append(String.format("Slow request: %s %s -> %d in %.1f ms (%s)", exchange.getRequestMethod(),
+				exchange.getRequestURI(), exchange.getResponseCode(), total / 1e6d, header(-1L, 0L)));
+
+		if (timeline != null) {
+			synchronized (timeline) {
+				for (String line : timeline)
+					str.append('\n').append(line);
+			}
+		}
+
+		Console.warn(str.toString());
+	}
+
+	@NotNull
+	private String header(long bytes, long pending) {
+		StringBuilder str = new StringBuilder(160);
+		entry(str, "queue", queued, null);
+		entry(str, "upstream", upstreamTime.get(), "n=" + upstreamCount.get());
+		entry(str, "extract", extractTime.get(), null);
+		entry(str, "encode", encodeTime.get() + pending, null);
+		if (bytes >= 0L)
+			str.append(", bytes;desc=\"").append(bytes).append('"');
+
+		return str.toString();
+	}
+
+	private static void entry(StringBuilder str, String name, long nanos, @Nullable String desc) {
+		if (!str.isEmpty())
+			str.append(", ");
+
+		str.append(name).append(";dur=").append(nanos / 1000L / 1000d);
+		if (desc != null)
+			str.append(";desc=\"").append(desc).append('"');
+	}
+}
@@ -11,10 +11,18 @@ final class Res {
 
 	static final byte[] msg404 = "404 Not Found".getBytes(StandardCharsets.UTF_8);
 
+	static final byte[] msg403 = "403 Forbidden".getBytes(StandardCharsets.UTF_8);
+
 	static final byte[] msg405 = "405 Method Not Allowed".getBytes(StandardCharsets.UTF_8);
 
+	static final byte[] msg409 = "409 Conflict".getBytes(StandardCharsets.UTF_8);
+
+	static final byte[] msg429 = "429 Too Many Requests".getBytes(StandardCharsets.UTF_8);
+
 	static final byte[] msg500 = "500 Internal Server Error".getBytes(StandardCharsets.UTF_8);
 
+	static final byte[] msg503 = "503 Service Unavailable".getBytes(StandardCharsets.UTF_8);
+
 	static final byte[] robots_txt = "User-agent: *\nDisallow: /\n".getBytes(StandardCharsets.UTF_8);
 
 	static final byte[] favicon_ico = new byte[]{0, 0, 1, 0, 1, 0, 32, 32, 0, 0, 1, 0, 32, 0, -88, 16, 0, 0, 22, 0, 0
@@ -0,0 +1,216 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+final class ResponseCache {
+	private final Map<String, Slot> entries = new ConcurrentHashMap<>();
+	// the same slots, the next to expire first, so eviction never has to sort
+	private final NavigableSet<Slot> order = new ConcurrentSkipListSet<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong size = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private volatile long capacity;
+
+	ResponseCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	@Nullable
+	Entry get(@NotNull String key) {
+		Slot slot = entries.get(key);
+		if (slot == null) {
+			misses.increment();
+			return null;
+		}
+
+		if (slot.entry.expires <= System.currentTimeMillis()) {
+			remove(slot);
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		return slot.entry;
+	}
+
+	@NotNull
+	Entry put(@NotNull String key, @NotNull byte[] data, long expires) {
+		Entry entry = new Entry(data, expires);
+		long capacity = this.capacity;
+		if (data.length > capacity || expires <= System.currentTimeMillis())
+			return entry; // not worth caching
+
+		Slot slot = new Slot(key, entry, sequence.getAndIncrement());
+		long added = entry.attach(this);
+		Slot old = entries.put(key, slot);
+		if (old != null) {
+			order.remove(old);
+			size.addAndGet(-old.entry.detach());
+		}
+
+		order.add(slot);
+		if (size.addAndGet(added) > capacity)
+			evict(capacity);
+
+		return entry;
+	}
+
+	void setCapacity(long capacity) {
+		this.capacity = capacity;
+		evict(capacity);
+	}
+
+	long hits() {
+		return hits.sum();
+	}
+
+	long misses() {
+		return misses.sum();
+	}
+
+	long size() {
+		return size.get();
+	}
+
+	void clear() {
+		for (Slot slot : entries.values())
+			remove(slot);
+	}
+
+	private void remove(Slot slot) {
+		order.remove(slot);
+		if (entries.remove(slot.key, slot))
+			size.addAndGet(-slot.entry.detach());
+	}
+
+	/**
+	 * Evicts entries if a compressed variant pushed the cache over its budget.
+	 */
+	private void trim() {
+		long capacity = this.capacity;
+		if (size.get() > capacity)
+			evict(capacity);
+	}
+
+	// expired entries are the first in order, then the ones closest to expiring
+	private void evict(long capacity) {
+		long now = System.currentTimeMillis();
+		for (Slot slot; (slot = order.pollFirst()) != null; ) {
+			if (size.get() <= capacity && slot.entry.expires > now) {
+				order.add(slot);
+				break;
+			}
+
+			// a slot replaced or removed meanwhile is only dropped from the order
+			if (entries.remove(slot.key, slot))
+				size.addAndGet(-slot.entry.detach());
+		}
+	}
+
+	private static final class Slot implements Comparable<Slot> {
+		final String key;
+		final Entry entry;
+		final long sequence;
+
+		Slot(String key, Entry entry, long sequence) {
+			this.key = key;
+			this.entry = entry;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(@NotNull Slot other) {
+			int c = Long.compare(entry.expires, other.entry.expires);
+			return c != 0 ? c : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	static final class Entry {
+		final byte[] data;
+		final long expires;
+		final long hash;
+
+		// compressed variants, encoded once on first use
+		private volatile byte[] gzip;
+		private volatile byte[] deflate;
+
+		// the cache holding this entry, which is charged for the variants as well, and by how much
+		private ResponseCache owner = null;
+		private long charged = 0L;
+
+		Entry(byte[] data, long expires) {
+			this.data = data;
+			this.expires = expires;
+			this.hash = ETag.hash(data);
+		}
+
+		@NotNull
+		byte[] getData(@Nullable String encoding) {
+			if (encoding == null)
+				return data;
+
+			byte[] encoded;
+			switch (encoding) {
+				case "gzip" -> {
+					if ((encoded = gzip) == null)
+						encoded = keep(Compression.compress(data, encoding, Deflater.BEST_COMPRESSION), true);
+				}
+				case "deflate" -> {
+					if ((encoded = deflate) == null)
+						encoded = keep(Compression.compress(data, encoding, Deflater.BEST_COMPRESSION), false);
+				}
+				default -> encoded = data;
+			}
+
+			return encoded;
+		}
+
+		// stores a variant unless another thread got there first, and charges the owning cache for it
+		@NotNull
+		private byte[] keep(@NotNull byte[] encoded, boolean isGzip) {
+			ResponseCache cache;
+			synchronized (this) {
+				byte[] existing = isGzip ? gzip : deflate;
+				if (existing != null)
+					return existing;
+
+				if (isGzip)
+					gzip = encoded;
+				else
+					deflate = encoded;
+
+				if ((cache = owner) == null)
+					return encoded;
+
+				charged += encoded.length;
+				cache.size.addAndGet(encoded.length);
+			}
+
+			// outside the lock, evicting detaches other entries
+			cache.trim();
+			return encoded;
+		}
+
+		// returns the bytes to charge the cache for this entry
+		private synchronized long attach(@NotNull ResponseCache cache) {
+			byte[] gzip = this.gzip;
+			byte[] deflate = this.deflate;
+			owner = cache;
+			return charged = data.length + (gzip == null ? 0L : gzip.length) + (deflate == null ? 0L : deflate.length);
+		}
+
+		// returns the bytes the cache was charged for this entry
+		private synchronized long detach() {
+			long bytes = charged;
+			owner = null;
+			charged = 0L;
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+enum ResponseFormat {
+	JSON("application/json"),
+	CBOR("application/cbor"),
+	MSGPACK("application/msgpack");
+
+	final String contentType;
+
+	ResponseFormat(String contentType) {
+		this.contentType = contentType;
+	}
+
+	@NotNull
+	ResponseWriter newWriter(@Nullable HttpExchange exchange, @Nullable Projection projection) {
+		return switch (this) {
+			case JSON -> new JSONWriter(exchange, projection);
+			case CBOR -> new CBORWriter(exchange, projection);
+			case MSGPACK -> new MsgPackWriter(exchange, projection);
+		};
+	}
+
+	/**
+	 * Picks the response format from the request's Accept header, JSON unless a binary format is
+	 * preferred.
+	 */
+	@NotNull
+	static ResponseFormat negotiate(@NotNull HttpExchange exchange) {
+		String header = exchange.getRequestHeaders().getFirst("Accept");
+		if (header == null || header.isEmpty())
+			return JSON;
+
+		ResponseFormat format = JSON;
+		float best = 0f;
+
+		for (String part : header.split(",")) {
+			String name = part;
+			float q = 1f;
+
+			int i = part.indexOf(';');
+			if (i >= 0) {
+				name = part.substring(0, i);
+				int j = part.indexOf("q=", i);
+				if (j >= 0) {
+					try {
+						q = Float.parseFloat(part.substring(j + 2).trim());
+					} catch (Exception e) {
+						q = 0f;
+					}
+				}
+			}
+
+			ResponseFormat match = switch (name.trim().toLowerCase()) {
+				case "application/json", "application/*", "*/*" -> JSON;
+				case "application/cbor" -> CBOR;
+				case "application/msgpack", "application/x-msgpack", "application/vnd.msgpack" -> MSGPACK;
+				default -> null;
+			};
+
+			// the first of equally preferred types wins
+			if (match != null && q > best) {
+				format = match;
+				best = q;
+			}
+		}
+
+		return format;
+	}
+}
@@ -0,0 +1,466 @@
+package com.nettleweb.ytproxy;
+
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Encodes a response body straight into pooled buffers. Subclasses implement the wire format, this
+ * class keeps track of the document structure, applies the {@link Projection} and, when bound to an
+ * exchange, flushes bodies larger than the buffered window to the client with chunked transfer
+ * encoding as they are written.
+ */
+abstract class ResponseWriter implements Closeable {
+	// number of pooled buffers held before switching to a chunked response
+	private static final int maxSegments = 8;
+
+	private final HttpExchange exchange;
+	private final String encoding;
+	private final List<byte[]> segments = new ArrayList<>(maxSegments);
+	private byte[] buffer = BufferPool.instance.acquire();
+	private byte[] scratch = null;
+	private int position = 0;
+	private OutputStream out = null;
+
+	// container state, one entry per nesting level
+	private int[] counts = new int[16];
+	private int depth = 0;
+	private boolean afterName = false;
+
+	// encoding time of the current document, see RequestTiming
+	private long rootStart = 0L;
+	private long rootBlocked = 0L;
+	private SerializationEvent event = null;
+	private int items = 0;
+	private long flushed = 0L;
+
+	// field selection, one entry per nesting level, null where everything is selected
+	private final Projection projection;
+	private Projection.Node[] scopes = new Projection.Node[16];
+	private Projection.Node pending = null;
+	private boolean skipping = false;
+	private int skipDepth = 0;
+
+	/**
+	 * @param streaming whether the body may be sent before it is complete, formats that go back to
+	 *                  patch earlier bytes cannot
+	 */
+	ResponseWriter(@Nullable HttpExchange exchange, @Nullable Projection projection, boolean streaming) {
+		this.exchange = streaming && exchange != null && !exchange.getRequestMethod().equals("HEAD") ? exchange : null;
+		this.encoding = this.exchange != null ? Compression.negotiate(this.exchange) : null;
+		this.projection = projection;
+		this.scopes[0] = projection == null ? null : projection.root();
+	}
+
+	@NotNull
+	abstract String contentType();
+
+	abstract void writeBeginObject() throws IOException;
+
+	abstract void writeEndObject(int size) throws IOException;
+
+	abstract void writeBeginArray() throws IOException;
+
+	abstract void writeEndArray(int size) throws IOException;
+
+	abstract void writeName(@NotNull String name) throws IOException;
+
+	abstract void writeString(@NotNull String value) throws IOException;
+
+	abstract void writeLong(long value) throws IOException;
+
+	abstract void writeBoolean(boolean value) throws IOException;
+
+	abstract void writeNull() throws IOException;
+
+	/**
+	 * Writes what goes between two entries of the same container.
+	 */
+	void writeSeparator() throws IOException {}
+
+	final ResponseWriter beginObject() throws IOException {
+		if (skipping) {
+			depth++;
+			return this;
+		}
+
+		if (depth == 0)
+			startRoot();
+
+		Projection.Node scope = afterName ? pending : scopes[depth];
+		beforeValue();
+		writeBeginObject();
+		push(scope);
+		return this;
+	}
+
+	final ResponseWriter endObject() throws IOException {
+		if (skip(true))
+			return this;
+
+		writeEndObject(counts[depth--]);
+		if (depth == 0)
+			endRoot();
+		return this;
+	}
+
+	final ResponseWriter beginArray() throws IOException {
+		if (skipping) {
+			depth++;
+			return this;
+		}
+
+		if (depth == 0)
+			startRoot();
+
+		Projection.Node scope = afterName ? pending : scopes[depth];
+		beforeValue();
+		writeBeginArray();
+		push(scope);
+		return this;
+	}
+
+	final ResponseWriter endArray() throws IOException {
+		if (skip(true))
+			return this;
+
+		writeEndArray(counts[depth--]);
+		if (depth == 0)
+			endRoot();
+		return this;
+	}
+
+	final ResponseWriter name(@NotNull String name) throws IOException {
+		if (skipping)
+			return this;
+
+		Projection.Node scope = scopes[depth];
+		if (scope != null) {
+			Projection.Node child = scope.get(name);
+			if (child == null) {
+				// not selected, drop the name and the value that follows
+				skipping = true;
+				skipDepth = depth;
+				return this;
+			}
+
+			pending = child;
+		}
+
+		beforeValue();
+		writeName(name);
+		afterName = true;
+		return this;
+	}
+
+	/**
+	 * Returns whether the given field of the current object is selected. Encoders use this to avoid
+	 * building values that would be dropped anyway.
+	 */
+	final boolean wants(@NotNull String name) {
+		if (skipping)
+			return false;
+
+		Projection.Node scope = scopes[depth];
+		return scope == null || scope.get(name) != null;
+	}
+
+	/**
+	 * Counts an item of a list, reported with the {@link SerializationEvent}.
+	 */
+	final void countItem() {
+		items++;
+	}
+
+	/**
+	 * Returns the image selection of the projection, see {@link Projection#thumb()}.
+	 */
+	final int thumb() {
+		return projection == null ? Projection.thumbAll : projection.thumb();
+	}
+
+	final ResponseWriter value(@Nullable String value) throws IOException {
+		if (skip(false))
+			return this;
+
+		beforeValue();
+		if (value == null)
+			writeNull();
+		else
+			writeString(value);
+		return this;
+	}
+
+	final ResponseWriter value(long value) throws IOException {
+		if (skip(false))
+			return this;
+
+		beforeValue();
+		writeLong(value);
+		return this;
+	}
+
+	final ResponseWriter value(boolean value) throws IOException {
+		if (skip(false))
+			return this;
+
+		beforeValue();
+		writeBoolean(value);
+		return this;
+	}
+
+	final ResponseWriter nullValue() throws IOException {
+		if (skip(false))
+			return this;
+
+		beforeValue();
+		writeNull();
+		return this;
+	}
+
+	/**
+	 * Writes a value already encoded in the same format as is.
+	 */
+	final ResponseWriter rawValue(@NotNull byte[] data) throws IOException {
+		if (skip(false))
+			return this;
+
+		beforeValue();
+		writeBytes(data, 0, data.length);
+		return this;
+	}
+
+	/**
+	 * Returns whether the response headers have already been sent, i.e. the body is being streamed.
+	 */
+	final boolean isCommitted() {
+		return out != null;
+	}
+
+	/**
+	 * Returns the size of the buffered (not yet committed) body.
+	 */
+	final int size() {
+		int size = position;
+		for (byte[] segment : segments)
+			size += segment.length;
+		return size;
+	}
+
+	/**
+	 * Returns the hash of the buffered (not yet committed) body, see {@link ETag}.
+	 */
+	final long hash() {
+		long hash = 0L;
+		for (byte[] segment : segments)
+			hash = ETag.hash(segment, 0, segment.length, hash);
+		return ETag.hash(buffer, 0, position, hash);
+	}
+
+	/**
+	 * Writes the buffered (not yet committed) body and releases the buffers.
+	 */
+	final void writeTo(@NotNull OutputStream out) throws IOException {
+		for (byte[] segment : segments)
+			out.write(segment, 0, segment.length);
+
+		out.write(buffer, 0, position);
+		close();
+	}
+
+	/**
+	 * Returns the buffered (not yet committed) body and releases the buffers.
+	 */
+	final byte[] toByteArray() {
+		byte[] data = new byte[size()];
+		int offset = 0;
+
+		for (byte[] segment : segments) {
+			System.arraycopy(segment, 0, data, offset, segment.length);
+			offset += segment.length;
+		}
+
+		System.arraycopy(buffer, 0, data, offset, position);
+		close();
+		return data;
+	}
+
+	/**
+	 * Flushes the remainder of a committed body and completes the exchange.
+	 */
+	final void finish() throws IOException {
+		try (OutputStream out = this.out) {
+			out.write(buffer, 0, position);
+			out.flush();
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public final void close() {
+		for (byte[] segment : segments)
+			BufferPool.instance.release(segment);
+		segments.clear();
+
+		if (buffer != null) {
+			BufferPool.instance.release(buffer);
+			buffer = null;
+		}
+
+		if (scratch != null) {
+			BufferPool.instance.release(scratch);
+			scratch = null;
+		}
+	}
+
+	/**
+	 * Returns a temporary buffer of at least the given length, valid until the next call.
+	 */
+	final byte[] scratch(int length) {
+		if (length > BufferPool.instance.bufferSize)
+			return new byte[length]; // rare, e.g. long descriptions
+
+		byte[] scratch = this.scratch;
+		if (scratch == null)
+			scratch = this.scratch = BufferPool.instance.acquire();
+		return scratch;
+	}
+
+	/**
+	 * Returns the number of bytes written so far, for use with {@link #patch}.
+	 */
+	final int offset() {
+		return segments.size() * BufferPool.instance.bufferSize + position;
+	}
+
+	/**
+	 * Overwrites a byte written earlier. Only valid for writers that do not stream.
+	 */
+	final void patch(int offset, int b) {
+		int index = offset / BufferPool.instance.bufferSize;
+		byte[] target = index == segments.size() ? buffer : segments.get(index);
+		target[offset % BufferPool.instance.bufferSize] = (byte) b;
+	}
+
+	final void writeBytes(byte[] src, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (position == buffer.length)
+				nextBuffer();
+
+			int n = Math.min(length, buffer.length - position);
+			System.arraycopy(src, offset, buffer, position, n);
+			position += n;
+			offset += n;
+			length -= n;
+		}
+	}
+
+	final void writeByte(int b) throws IOException {
+		if (position == buffer.length)
+			nextBuffer();
+
+		buffer[position++] = (byte) b;
+	}
+
+	private void startRoot() {
+		rootStart = System.nanoTime();
+		rootBlocked = RequestTiming.blocked();
+		event = new SerializationEvent();
+		event.begin();
+		items = 0;
+	}
+
+	private void endRoot() {
+		RequestTiming.encoded(rootElapsed());
+
+		SerializationEvent event = this.event;
+		if (event.shouldCommit()) {
+			event.format = contentType();
+			event.items = items;
+			event.bytes = flushed + offset();
+			event.commit();
+		}
+	}
+
+	private long rootElapsed() {
+		return System.nanoTime() - rootStart - (RequestTiming.blocked() - rootBlocked);
+	}
+
+	private void push(Projection.Node scope) {
+		if (++depth == counts.length) {
+			counts = Arrays.copyOf(counts, depth << 1);
+			scopes = Arrays.copyOf(scopes, depth << 1);
+		}
+
+		counts[depth] = 0;
+		scopes[depth] = scope;
+	}
+
+	/**
+	 * Returns whether the value being ended is dropped, and stops dropping once the skipped value is
+	 * complete.
+	 */
+	private boolean skip(boolean end) {
+		if (!skipping)
+			return false;
+
+		if (end)
+			depth--;
+		if (depth == skipDepth)
+			skipping = false;
+
+		return true;
+	}
+
+	private void beforeValue() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+
+		if (counts[depth]++ > 0 && depth > 0)
+			writeSeparator();
+	}
+
+	private void nextBuffer() throws IOException {
+		if (out != null) {
+			// already streaming, reuse the same buffer
+			out.write(buffer, 0, position);
+			flushed += position;
+			position = 0;
+			return;
+		}
+
+		segments.add(buffer);
+		buffer = BufferPool.instance.acquire();
+		position = 0;
+
+		if (exchange != null && segments.size() >= maxSegments) {
+			Headers headers = exchange.getResponseHeaders();
+			headers.set("Content-Type", contentType());
+			headers.set("Vary", "Accept, Accept-Encoding");
+			if (encoding != null)
+				headers.set("Content-Encoding", encoding);
+
+			RequestTiming.setHeader(exchange, -1L, depth > 0 ? rootElapsed() : 0L);
+			exchange.sendResponseHeaders(200, 0L);
+
+			OutputStream out = exchange.getResponseBody();
+			if (encoding != null)
+				out = Compression.wrap(out, encoding, Deflater.DEFAULT_COMPRESSION);
+
+			for (byte[] segment : segments) {
+				out.write(segment, 0, segment.length);
+				BufferPool.instance.release(segment);
+				flushed += segment.length;
+			}
+
+			segments.clear();
+			this.out = out;
+		}
+	}
+}
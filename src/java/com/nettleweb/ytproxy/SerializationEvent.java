@@ -0,0 +1,21 @@
+package com.nettleweb.ytproxy;
+
+import jdk.jfr.*;
+
+@Name("com.nettleweb.ytproxy.Serialization")
+@Label("Serialization")
+@Description("Encoding of one response document")
+@Category({"YTProxy", "Serialization"})
+@StackTrace(false)
+final class SerializationEvent extends Event {
+	@Label("Format")
+	String format;
+
+	@Label("Items")
+	@Description("Number of search, playlist or kiosk items")
+	int items;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+}
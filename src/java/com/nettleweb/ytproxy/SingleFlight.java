@@ -0,0 +1,104 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class SingleFlight {
+	public static final SingleFlight instance = new SingleFlight();
+
+	private final Map<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+	private final LongAdder executed = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	private SingleFlight() {}
+
+	/**
+	 * Runs the given call, or waits for an identical call that is already in flight and shares its
+	 * result (or failure) instead of starting another one.
+	 */
+	<T> T run(@NotNull String key, @NotNull Callable<T> call) throws Exception {
+		long start = System.nanoTime();
+		try {
+			return join(key, call);
+		} finally {
+			RequestTiming.extracted(System.nanoTime() - start);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T join(@NotNull String key, @NotNull Callable<T> call) throws Exception {
+		boolean joined = false;
+		for (;;) {
+			CompletableFuture<Object> future = new CompletableFuture<>();
+			CompletableFuture<Object> existing = calls.putIfAbsent(key, future);
+
+			if (existing != null) {
+				// once per caller, not again after starting over
+				if (!joined) {
+					joined = true;
+					coalesced.increment();
+				}
+
+				try {
+					return (T) existing.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Abandoned)
+						continue; // its caller gave up on it, start over
+					if (cause instanceof Exception)
+						throw (Exception) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+
+					throw e;
+				}
+			}
+
+			executed.increment();
+			try {
+				T result = call.call();
+				future.complete(result);
+				return result;
+			} catch (Throwable e) {
+				calls.remove(key, future);
+
+				// interrupted by a caller that no longer needs the result, which others still do
+				future.completeExceptionally(isInterrupted(e) ? Abandoned.instance : e);
+				throw e;
+			} finally {
+				calls.remove(key, future);
+			}
+		}
+	}
+
+	private static boolean isInterrupted(Throwable e) {
+		// blocking calls clear the flag when they throw
+		return Thread.currentThread().isInterrupted() || e instanceof InterruptedException ||
+				e instanceof InterruptedIOException || e instanceof ClosedByInterruptException;
+	}
+
+	long executed() {
+		return executed.sum();
+	}
+
+	long coalesced() {
+		return coalesced.sum();
+	}
+
+	int inFlight() {
+		return calls.size();
+	}
+
+	private static final class Abandoned extends Exception {
+		static final Abandoned instance = new Abandoned();
+
+		private Abandoned() {
+			super(null, null, false, false);
+		}
+	}
+}
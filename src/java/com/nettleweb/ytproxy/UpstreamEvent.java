@@ -0,0 +1,23 @@
+package com.nettleweb.ytproxy;
+
+import jdk.jfr.*;
+
+@Name("com.nettleweb.ytproxy.Upstream")
+@Label("Upstream Request")
+@Description("An HTTP request made by the extractor through the downloader, or replayed from a recording")
+@Category({"YTProxy", "Upstream"})
+final class UpstreamEvent extends Event {
+	@Label("Method")
+	String method;
+
+	@Label("Host")
+	String host;
+
+	@Label("Status")
+	@Description("HTTP status, -1 if the request failed without a response")
+	int status;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+}
@@ -0,0 +1,17 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+
+final class VirtualThreadExecutor extends ExchangeExecutor {
+	VirtualThreadExecutor(int concurrency, int maxQueue) {
+		super(concurrency, maxQueue);
+	}
+
+	@Override
+	void work(@NotNull AdmissionControl.Task task) throws IOException {
+		// the exchange's own virtual thread is the worker, the slot is what limits the concurrency
+		task.run();
+	}
+}
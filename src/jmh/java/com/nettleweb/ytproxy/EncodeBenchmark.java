@@ -0,0 +1,45 @@
+package com.nettleweb.ytproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.schabi.newpipe.extractor.*;
+import org.schabi.newpipe.extractor.stream.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EncodeBenchmark {
+	@Param({"JSON", "CBOR", "MSGPACK"})
+	public ResponseFormat format;
+
+	private StreamInfo stream;
+	private ListExtractor.InfoItemsPage<InfoItem> search;
+
+	@Setup
+	public void setup() throws Exception {
+		stream = Fixtures.stream("stream.json");
+		search = Fixtures.page("search.json");
+
+		System.out.println(format + ": stream " + encodeStream().length + " bytes, search " + encodeSearch().length +
+				" bytes");
+	}
+
+	@Benchmark
+	public byte[] encodeStream() throws IOException {
+		ResponseWriter out = format.newWriter(null, null);
+		HTTPHandlerImpl.encodeStreamInfo(out, stream);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encodeSearch() throws IOException {
+		ResponseWriter out = format.newWriter(null, null);
+		HTTPHandlerImpl.encodeItemsPage(out, search, null);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,358 @@
+package com.nettleweb.ytproxy;
+
+import org.schabi.newpipe.extractor.*;
+import org.schabi.newpipe.extractor.channel.*;
+import org.schabi.newpipe.extractor.exceptions.*;
+import org.schabi.newpipe.extractor.playlist.*;
+import org.schabi.newpipe.extractor.services.youtube.*;
+import org.schabi.newpipe.extractor.stream.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Builds extractor objects from the fixtures in src/jmh/res/fixtures, so the benchmarks and the
+ * allocation check run offline. The fixtures are synthetic, not recorded: they were written in the
+ * format of the server's own /stream and /search responses, with made up ids and links and repeated
+ * names and descriptions. What decides the cost of encoding is the shape, which follows that of a
+ * typical watch page and results page: 20 video and 4 audio streams with signed URLs of about 800
+ * characters, 20 related items and 20 search results with 2 to 4 thumbnails each, tags and a
+ * description of about 900 characters. A real response can replace either file by saving the JSON
+ * response of a running server over it.
+ */
+final class Fixtures {
+	private Fixtures() {}
+
+	static StreamInfo stream(String name) throws IOException, ExtractionException {
+		Map<String, Object> json = object(read(name));
+		StreamInfo info = new StreamInfo((int) number(json, "service"), string(json, "url"), string(json, "url"),
+				streamType(string(json, "stream")), string(json, "id"), string(json, "name"),
+				(int) number(json, "ageLimit"));
+
+		info.setHost(string(json, "host"));
+		info.setShortFormContent(bool(json, "short"));
+		info.setLicence(string(json, "license"));
+		info.setCategory(string(json, "category"));
+		info.setDuration(number(json, "duration"));
+		info.setViewCount(number(json, "viewCount"));
+		info.setLikeCount(number(json, "likeCount"));
+		info.setTextualUploadDate(string(json, "uploadDate"));
+		info.setDescription(new Description(string(json, "description"), Description.PLAIN_TEXT));
+		info.setPrivacy(StreamInfo.Privacy.valueOf(string(json, "privacy").toUpperCase(Locale.ROOT)));
+
+		List<String> tags = new ArrayList<>();
+		for (Object tag : list(json, "tags"))
+			tags.add((String) tag);
+		info.setTags(tags);
+
+		Map<String, Object> uploader = object(json.get("uploader"));
+		info.setUploaderUrl(string(uploader, "url"));
+		info.setUploaderName(string(uploader, "name"));
+		info.setUploaderVerified(bool(uploader, "verified"));
+		info.setUploaderSubscriberCount(number(uploader, "subscribers"));
+
+		Map<String, Object> subchannel = object(json.get("subchannel"));
+		info.setSubChannelUrl(string(subchannel, "url"));
+		info.setSubChannelName(string(subchannel, "name"));
+		info.setThumbnails(images(json));
+
+		List<AudioStream> audioStreams = new ArrayList<>();
+		for (Object value : list(json, "audioStreams")) {
+			Map<String, Object> stream = object(value);
+			ItagItem itag = ItagItem.getItag(Integer.parseInt(string(stream, "id")));
+			itag.setBitrate((int) number(stream, "bitrate"));
+			itag.setQuality(string(stream, "quality"));
+			itag.setCodec(string(stream, "codec"));
+
+			audioStreams.add(new AudioStream.Builder()
+					.setId(string(stream, "id"))
+					.setContent(string(stream, "url"), true)
+					.setMediaFormat(itag.getMediaFormat())
+					.setAverageBitrate((int) number(stream, "bitrate") / 1000)
+					.setItagItem(itag)
+					.build());
+		}
+		info.setAudioStreams(audioStreams);
+
+		List<VideoStream> videoStreams = new ArrayList<>();
+		for (Object value : list(json, "videoStreams")) {
+			Map<String, Object> stream = object(value);
+			ItagItem itag = ItagItem.getItag(Integer.parseInt(string(stream, "id")));
+			itag.setBitrate((int) number(stream, "bitrate"));
+			itag.setWidth((int) number(stream, "width"));
+			itag.setHeight((int) number(stream, "height"));
+			itag.setQuality(string(stream, "quality"));
+			itag.setCodec(string(stream, "codec"));
+			itag.setFps((int) number(stream, "fps"));
+
+			// muxed streams carry an audio codec as well
+			videoStreams.add(new VideoStream.Builder()
+					.setId(string(stream, "id"))
+					.setContent(string(stream, "url"), true)
+					.setMediaFormat(itag.getMediaFormat())
+					.setIsVideoOnly(!string(stream, "codec").contains(","))
+					.setResolution(string(stream, "quality"))
+					.setItagItem(itag)
+					.build());
+		}
+		info.setVideoStreams(videoStreams);
+
+		info.setRelatedItems(items(list(json, "relatedItems")));
+		return info;
+	}
+
+	static ListExtractor.InfoItemsPage<InfoItem> page(String name) throws IOException {
+		return new ListExtractor.InfoItemsPage<>(items(list(object(read(name)), "results")), null, List.of());
+	}
+
+	private static List<InfoItem> items(List<Object> values) {
+		List<InfoItem> items = new ArrayList<>(values.size());
+		for (Object value : values) {
+			Map<String, Object> json = object(value);
+			switch (string(json, "type")) {
+				case "stream" -> {
+					StreamInfoItem item = new StreamInfoItem(0, string(json, "url"), string(json, "name"),
+							streamType(string(json, "stream")));
+					item.setShortFormContent(bool(json, "short"));
+					item.setDuration(number(json, "duration"));
+					item.setViewCount(number(json, "viewCount"));
+					item.setTextualUploadDate(string(json, "uploadDate"));
+					item.setShortDescription(string(json, "description"));
+
+					Map<String, Object> uploader = object(json.get("uploader"));
+					item.setUploaderUrl(string(uploader, "url"));
+					item.setUploaderName(string(uploader, "name"));
+					item.setUploaderVerified(bool(uploader, "verified"));
+					item.setThumbnails(images(json));
+					items.add(item);
+				}
+				case "channel" -> {
+					ChannelInfoItem item = new ChannelInfoItem(0, string(json, "url"), string(json, "name"));
+					item.setStreamCount(number(json, "streams"));
+					item.setVerified(bool(json, "verified"));
+					item.setSubscriberCount(number(json, "subscribers"));
+					item.setDescription(string(json, "description"));
+					item.setThumbnails(images(json));
+					items.add(item);
+				}
+				case "playlist" -> {
+					PlaylistInfoItem item = new PlaylistInfoItem(0, string(json, "url"), string(json, "name"));
+					item.setStreamCount(number(json, "streams"));
+					item.setPlaylistType(PlaylistInfo.PlaylistType.valueOf(string(json, "playlist")
+							.toUpperCase(Locale.ROOT)));
+					item.setDescription(new Description(string(json, "description"), Description.PLAIN_TEXT));
+
+					Map<String, Object> uploader = object(json.get("uploader"));
+					item.setUploaderUrl(string(uploader, "url"));
+					item.setUploaderName(string(uploader, "name"));
+					item.setUploaderVerified(bool(uploader, "verified"));
+					item.setThumbnails(images(json));
+					items.add(item);
+				}
+				default -> throw new IllegalArgumentException("Unsupported item type: " + json.get("type"));
+			}
+		}
+
+		return items;
+	}
+
+	private static List<Image> images(Map<String, Object> json) {
+		List<Image> images = new ArrayList<>();
+		for (Object value : list(json, "thumbnails")) {
+			Map<String, Object> image = object(value);
+			int height = (int) number(image, "height");
+			images.add(new Image(string(image, "url"), height, (int) number(image, "width"),
+					Image.ResolutionLevel.fromHeight(height)));
+		}
+
+		return images;
+	}
+
+	private static StreamType streamType(String type) {
+		return switch (type) {
+			case "none" -> StreamType.NONE;
+			case "live" -> StreamType.LIVE_STREAM;
+			case "audio" -> StreamType.AUDIO_STREAM;
+			case "video" -> StreamType.VIDEO_STREAM;
+			case "post_live" -> StreamType.POST_LIVE_STREAM;
+			case "audio_live" -> StreamType.AUDIO_LIVE_STREAM;
+			case "post_live_audio" -> StreamType.POST_LIVE_AUDIO_STREAM;
+			default -> throw new IllegalArgumentException("Unsupported stream type: " + type);
+		};
+	}
+
+	private static String string(Map<String, Object> json, String name) {
+		return (String) json.get(name);
+	}
+
+	private static long number(Map<String, Object> json, String name) {
+		return ((Number) json.get(name)).longValue();
+	}
+
+	private static boolean bool(Map<String, Object> json, String name) {
+		return (Boolean) json.get(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Object> list(Map<String, Object> json, String name) {
+		return (List<Object>) json.get(name);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> object(Object value) {
+		return (Map<String, Object>) value;
+	}
+
+	static byte[] bytes(String name) throws IOException {
+		try (InputStream stream = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+			if (stream == null)
+				throw new FileNotFoundException("Missing fixture: " + name);
+
+			return stream.readAllBytes();
+		}
+	}
+
+	private static Object read(String name) throws IOException {
+		Parser parser = new Parser(new String(bytes(name), StandardCharsets.UTF_8));
+		Object value = parser.value();
+		if (parser.skip() >= 0)
+			throw new IOException("Trailing data in fixture: " + name);
+
+		return value;
+	}
+
+	// just enough JSON for the fixtures, which are in the server's own format
+	private static final class Parser {
+		private final String str;
+		private int pos = 0;
+
+		private Parser(String str) {
+			this.str = str;
+		}
+
+		private int skip() {
+			while (pos < str.length()) {
+				char ch = str.charAt(pos);
+				if (ch != ' ' && ch != '\t' && ch != '\n' && ch != '\r')
+					return ch;
+
+				pos++;
+			}
+
+			return -1;
+		}
+
+		private void expect(char ch) throws IOException {
+			if (skip() != ch)
+				throw new IOException("Expected '" + ch + "' at " + pos);
+
+			pos++;
+		}
+
+		private Object value() throws IOException {
+			switch (skip()) {
+				case '{' -> {
+					pos++;
+					Map<String, Object> map = new LinkedHashMap<>();
+					if (skip() == '}') {
+						pos++;
+						return map;
+					}
+
+					do {
+						String name = string();
+						expect(':');
+						map.put(name, value());
+					} while (next('}'));
+					return map;
+				}
+				case '[' -> {
+					pos++;
+					List<Object> list = new ArrayList<>();
+					if (skip() == ']') {
+						pos++;
+						return list;
+					}
+
+					do {
+						list.add(value());
+					} while (next(']'));
+					return list;
+				}
+				case '"' -> {
+					return string();
+				}
+				case 't' -> {
+					return literal("true", Boolean.TRUE);
+				}
+				case 'f' -> {
+					return literal("false", Boolean.FALSE);
+				}
+				case 'n' -> {
+					return literal("null", null);
+				}
+				default -> {
+					int start = pos;
+					while (pos < str.length() && "+-0123456789.eE".indexOf(str.charAt(pos)) >= 0)
+						pos++;
+
+					String num = str.substring(start, pos);
+					if (num.isEmpty())
+						throw new IOException("Unexpected character at " + pos);
+
+					return num.indexOf('.') < 0 && num.indexOf('e') < 0 && num.indexOf('E') < 0 ?
+							(Object) Long.parseLong(num) : (Object) Double.parseDouble(num);
+				}
+			}
+		}
+
+		// returns whether another element follows
+		private boolean next(char end) throws IOException {
+			int ch = skip();
+			pos++;
+			if (ch == ',')
+				return true;
+			if (ch == end)
+				return false;
+
+			throw new IOException("Expected ',' or '" + end + "' at " + (pos - 1));
+		}
+
+		private Object literal(String literal, Object value) throws IOException {
+			if (!str.startsWith(literal, pos))
+				throw new IOException("Unexpected character at " + pos);
+
+			pos += literal.length();
+			return value;
+		}
+
+		private String string() throws IOException {
+			expect('"');
+			StringBuilder builder = new StringBuilder();
+			for (;;) {
+				char ch = str.charAt(pos++);
+				if (ch == '"')
+					return builder.toString();
+				if (ch != '\\') {
+					builder.append(ch);
+					continue;
+				}
+
+				ch = str.charAt(pos++);
+				switch (ch) {
+					case 'b' -> builder.append('\b');
+					case 'f' -> builder.append('\f');
+					case 'n' -> builder.append('\n');
+					case 'r' -> builder.append('\r');
+					case 't' -> builder.append('\t');
+					case 'u' -> {
+						builder.append((char) Integer.parseInt(str.substring(pos, pos + 4), 16));
+						pos += 4;
+					}
+					default -> builder.append(ch);
+				}
+			}
+		}
+	}
+}
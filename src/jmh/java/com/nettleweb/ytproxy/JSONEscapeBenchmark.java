@@ -0,0 +1,162 @@
+package com.nettleweb.ytproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JSONEscapeBenchmark {
+	// titles and descriptions modelled after real search results
+	private static final String[] ascii = {
+			"How to Build a YouTube Proxy in Java - Full Tutorial (2024)",
+			"Lo-fi hip hop radio - beats to relax/study to",
+			"Top 10 Most Beautiful Places in the World | Travel Guide",
+			"Subscribe for more videos! Follow me on https://example.com/channel/UC1234567890 and check the" +
+					" gear I use: https://example.com/gear?ref=desc&utm_source=youtube",
+	};
+
+	private static final String[] cjk = {
+			"\u3010\u516c\u5f0f\u3011\u65b0\u66f2\u30df\u30e5\u30fc\u30b8\u30c3\u30af\u30d3\u30c7\u30aa " +
+					"\u30d5\u30eb\u30d0\u30fc\u30b8\u30e7\u30f3",
+			"\u5982\u4f55\u5728\u5bb6\u5236\u4f5c\u7f8e\u5473\u7684\u7ea2\u70e7\u8089 \u7b80\u5355\u6613\u5b66",
+			"\ud55c\uad6d \uc5ec\ud589 \ube0c\uc774\ub85c\uadf8 \uc11c\uc6b8 \ub9db\uc9d1 \ud22c\uc5b4 " +
+					"2024",
+			"\u30c1\u30e3\u30f3\u30cd\u30eb\u767b\u9332\u3088\u308d\u3057\u304f\u304a\u9858\u3044\u3057\u307e" +
+					"\u3059\uff01 \u65b0\u3057\u3044\u52d5\u753b\u3092\u6bce\u9031\u6295\u7a3f\u3057\u3066" +
+					"\u3044\u307e\u3059",
+	};
+
+	private static final String[] emoji = {
+			"\ud83d\udd25\ud83d\udd25 INSANE Goal Compilation \ud83d\udd25\ud83d\udd25 | Best of 2024 \u26bd",
+			"Morning routine \u2600\ufe0f\u2615 | aesthetic vlog \ud83c\udf38\u2728",
+			"\ud83c\udfb5 Chill Mix \ud83c\udfb5 Relaxing Music for Sleep \ud83d\ude34\ud83c\udf19",
+			"We tried 100 snacks \ud83d\ude31\ud83c\udf6b\ud83c\udf6d\ud83c\udf5f and ranked them all",
+	};
+
+	private static final String[] control = {
+			"Chapters:\n00:00 Intro\n01:23 \"Setup\"\n05:40 Config\t(advanced)\n10:00 Outro\n",
+			"C:\\Users\\demo\\Videos\\clip.mp4\r\nC:\\Users\\demo\\Videos\\clip2.mp4\r\n",
+			"Line one\nLine two\nLine \"three\"\n\tindented\u0001\u001f\b\f",
+			"{\"json\":\"inside\",\"a\\\\b\":[1,2,3]}\n\n\n",
+	};
+
+	@Param({"ascii", "cjk", "emoji", "control"})
+	public String dataset;
+
+	private String[] strings;
+
+	@Setup
+	public void setup() {
+		String[] base = switch (dataset) {
+			case "ascii" -> ascii;
+			case "cjk" -> cjk;
+			case "emoji" -> emoji;
+			case "control" -> control;
+			default -> throw new IllegalArgumentException(dataset);
+		};
+
+		// about the number of string fields in one search response
+		strings = new String[256];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = base[i % base.length] + " #" + i;
+
+		// both implementations must produce the same bytes
+		if (!Arrays.equals(legacy(), writer()))
+			throw new IllegalStateException("Output mismatch");
+	}
+
+	@Benchmark
+	public void legacy(Blackhole bh) {
+		bh.consume(legacy());
+	}
+
+	@Benchmark
+	public void writer(Blackhole bh) throws IOException {
+		try (JSONWriter json = new JSONWriter()) {
+			json.beginArray();
+			for (String str : strings)
+				json.value(str);
+			json.endArray();
+			bh.consume(json.size());
+		}
+	}
+
+	private byte[] legacy() {
+		StringBuilder str = new StringBuilder("[");
+		for (String s : strings)
+			str.append(encodeJSON(s)).append(",");
+
+		str.setCharAt(str.length() - 1, ']');
+		return str.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private byte[] writer() {
+		try {
+			JSONWriter json = new JSONWriter();
+			json.beginArray();
+			for (String str : strings)
+				json.value(str);
+			json.endArray();
+			return json.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// the previous HTTPHandlerImpl.encodeJSON, kept as the baseline
+	private static String encodeJSON(String str) {
+		if (str == null)
+			return "null";
+
+		StringBuilder builder = new StringBuilder("\"");
+		for (char ch : str.toCharArray()) {
+			switch (ch) {
+				case '\"':
+					builder.append("\\\"");
+					break;
+				case '\\':
+					builder.append("\\\\");
+					break;
+				case '\b':
+					builder.append("\\b");
+					break;
+				case '\f':
+					builder.append("\\f");
+					break;
+				case '\n':
+					builder.append("\\n");
+					break;
+				case '\r':
+					builder.append("\\r");
+					break;
+				case '\t':
+					builder.append("\\t");
+					break;
+				default:
+					if (ch < 0x20) {
+						String code = Integer.toString(ch, 16);
+						code = switch (code.length()) {
+							case 0 -> "0000";
+							case 1 -> "000" + code;
+							case 2 -> "00" + code;
+							case 3 -> "0" + code;
+							default -> code;
+						};
+						builder.append("\\u").append(code);
+					} else builder.append(ch);
+					break;
+			}
+		}
+
+		return builder.append("\"").toString();
+	}
+}
@@ -0,0 +1,100 @@
+package com.nettleweb.ytproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.schabi.newpipe.extractor.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PageCodecBenchmark {
+	// continuation tokens as returned by the YouTube innertube API
+	private static final String continuation = "EpYDEgVtdXNpYxqMA0NBQVNBaElBV2hvWUxTSTZLUkM4S0dRSWZpcTlzQ0psc3hqWGFvMnd" +
+			"WSTNyV1VLTVZpRDJBZkdBS2dMU3Rtb1F6WWlYV2ZWRjVvT0hVWGhjYnFnZUxKRmlfVTdYUWtWamd1b0FQVjJDWkVpTE9KWGo4cGlsV" +
+			"zRmOV9Wd2xJZEdJT05hY3FfUjZCa2tkWllHVDJ5X1lVcEJ0RTRtNDR5NVFYZXphWmpvcnFMM2NNb0VfWVRHWXhMT2NRS0V0cEJJU" +
+			"GZLMmpnWDFNV0laQ0hWcXUwa3NHdVlMWXhsM3V6SG9qQXhfN0Z0RHN0REJuTUdLaHZmMDRjeGVMV0h3TFBKWlFBWE9sU2J3bmJCQ" +
+			"mlBU1dBRVNFZ2tBNGdjQ0FRRUJPQUlRQVJnQkNBbUFCZ0EyCAoDGIIHGACqAQA%3D";
+
+	private static final String context = "{\"context\":{\"client\":{\"hl\":\"en\",\"gl\":\"US\",\"clientName\":" +
+			"\"WEB\",\"clientVersion\":\"2.20240726.00.00\",\"originalUrl\":\"https://www.youtube.com\"," +
+			"\"platform\":\"DESKTOP\",\"utcOffsetMinutes\":0},\"request\":{\"internalExperimentFlags\":[]," +
+			"\"useSsl\":true},\"user\":{\"lockedSafetyMode\":false}},\"continuation\":\"";
+
+	@Param({"search", "playlist", "kiosk"})
+	public String kind;
+
+	private Page page;
+	private String legacyToken;
+	private String token;
+
+	@Setup
+	public void setup() {
+		page = switch (kind) {
+			case "search" -> new Page("https://www.youtube.com/youtubei/v1/search?prettyPrint=false", null, null,
+					null, (context + continuation + "\"}").getBytes(StandardCharsets.UTF_8));
+			case "playlist" -> new Page("https://www.youtube.com/youtubei/v1/browse?prettyPrint=false",
+					"PLFgquLnL59alCl_2TQvOiD5Vgm1hCaGSI", null, null, (context + continuation.substring(0, 212) +
+					"\"}").getBytes(StandardCharsets.UTF_8));
+			case "kiosk" -> new Page("https://www.youtube.com/feed/trending", null,
+					List.of("dQw4w9WgXcQ", "9bZkp7q19f0", "kJQP7kiw5Fk"), Map.of("CONSENT", "PENDING+987"), null);
+			default -> throw new IllegalArgumentException(kind);
+		};
+
+		legacyToken = legacyEncode(page);
+		token = PageCodec.instance.encode(page);
+
+		if (PageCodec.instance.decode(token) == null)
+			throw new IllegalStateException("Round trip failed");
+
+		System.out.println(kind + ": legacy " + legacyToken.length() + " chars, compact " + token.length() + " chars");
+	}
+
+	@Benchmark
+	public String legacyEncode() {
+		return legacyEncode(page);
+	}
+
+	@Benchmark
+	public Page legacyDecode() {
+		return legacyDecode(legacyToken);
+	}
+
+	@Benchmark
+	public String encode() {
+		return PageCodec.instance.encode(page);
+	}
+
+	@Benchmark
+	public Page decode() {
+		return PageCodec.instance.decode(token);
+	}
+
+	// the previous HTTPHandlerImpl.encodePage/decodePage, kept as the baseline
+	private static String legacyEncode(Page page) {
+		try (ByteArrayOutputStream str1 = new ByteArrayOutputStream(); ObjectOutputStream str2 =
+				new ObjectOutputStream(str1)) {
+
+			str2.writeObject(page);
+			str2.flush();
+			return Base64.getEncoder().encodeToString(str1.toByteArray());
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to serialize page object", e);
+		}
+	}
+
+	private static Page legacyDecode(String data) {
+		try (ByteArrayInputStream str1 = new ByteArrayInputStream(Base64.getDecoder().decode(data));
+		     ObjectInputStream str2 = new ObjectInputStream(str1)) {
+			return (Page) str2.readObject();
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to decode page object", e);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.nettleweb.ytproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Reads an upstream response body into the String handed to the extractor. The body is JSON, built
+ * from the stream fixture, so it compresses roughly like a real one, if somewhat better as the
+ * fixture's descriptions repeat; the sizes on the wire are printed at setup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReadBodyBenchmark {
+	// an API response, a watch page and a large player script
+	@Param({"4096", "262144", "2097152"})
+	public int size;
+
+	private byte[] body;
+	private byte[] gzip;
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] fixture = Fixtures.bytes("stream.json");
+		body = new byte[size];
+		for (int i = 0; i < size; i += fixture.length)
+			System.arraycopy(fixture, 0, body, i, Math.min(fixture.length, size - i));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+		try (OutputStream stream = new GZIPOutputStream(out)) {
+			stream.write(body);
+		}
+
+		gzip = out.toByteArray();
+		System.out.println("\nOn the wire: " + body.length + " bytes identity, " + gzip.length + " bytes gzip");
+	}
+
+	// the read before requests were compressed and bodies presized, with the length unknown
+	@Benchmark
+	public String previous() throws IOException {
+		byte[] data = readBytes(new ByteArrayInputStream(body));
+		return data.length > 0 ? new String(data, StandardCharsets.UTF_8) : null;
+	}
+
+	@Benchmark
+	public String identity() throws IOException {
+		return DownloaderImpl.readBody(new ByteArrayInputStream(body), body.length);
+	}
+
+	@Benchmark
+	public String identityChunked() throws IOException {
+		return DownloaderImpl.readBody(new ByteArrayInputStream(body), -1L);
+	}
+
+	@Benchmark
+	public String gzip() throws IOException {
+		return DownloaderImpl.readBody(Compression.unwrap(new ByteArrayInputStream(gzip), "gzip"), -1L);
+	}
+
+	// the previous DownloaderImpl.readBytes, kept as the baseline
+	private static byte[] readBytes(InputStream stream) throws IOException {
+		byte[] buffer = new byte[8192];
+		byte[] outBuf = new byte[0];
+		for (int i = stream.read(buffer, 0, 8192); i >= 0; i = stream.read(buffer, 0, 8192)) {
+			byte[] merged = new byte[outBuf.length + i];
+			System.arraycopy(outBuf, 0, merged, 0, outBuf.length);
+			System.arraycopy(buffer, 0, merged, outBuf.length, i);
+			outBuf = merged;
+		}
+
+		stream.close();
+		return outBuf;
+	}
+}
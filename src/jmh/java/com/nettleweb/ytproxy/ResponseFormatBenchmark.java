@@ -0,0 +1,68 @@
+package com.nettleweb.ytproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.schabi.newpipe.extractor.*;
+import org.schabi.newpipe.extractor.stream.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseFormatBenchmark {
+	@Param({"JSON", "CBOR", "MSGPACK"})
+	public ResponseFormat format;
+
+	// items per page, 20 is what a search page returns
+	@Param({"20", "200"})
+	public int items;
+
+	private ListExtractor.InfoItemsPage<StreamInfoItem> page;
+
+	@Setup
+	public void setup() throws IOException {
+		List<StreamInfoItem> list = new ArrayList<>(items);
+		for (int i = 0; i < items; i++) {
+			String id = Long.toString(0x5DEECE66DL * (i + 1), 36);
+			StreamInfoItem item = new StreamInfoItem(0, "https://www.youtube.com/watch?v=" + id,
+					"Lo-fi hip hop radio - beats to relax/study to #" + i, StreamType.VIDEO_STREAM);
+
+			item.setDuration(180L + i * 37L);
+			item.setViewCount(1234567L * (i + 1));
+			item.setTextualUploadDate((i % 12 + 1) + " months ago");
+			item.setShortDescription("Subscribe for more videos! Follow me on https://example.com/channel/" + id);
+			item.setUploaderUrl("https://www.youtube.com/channel/UC" + id);
+			item.setUploaderName("Lofi Girl");
+			item.setUploaderVerified(true);
+			item.setThumbnails(List.of(
+					new Image("https://i.ytimg.com/vi/" + id + "/default.jpg", 90, 120, Image.ResolutionLevel.LOW),
+					new Image("https://i.ytimg.com/vi/" + id + "/mqdefault.jpg", 180, 320,
+							Image.ResolutionLevel.MEDIUM),
+					new Image("https://i.ytimg.com/vi/" + id + "/hqdefault.jpg", 360, 480,
+							Image.ResolutionLevel.MEDIUM),
+					new Image("https://i.ytimg.com/vi/" + id + "/maxresdefault.jpg", 720, 1280,
+							Image.ResolutionLevel.HIGH)
+			));
+			list.add(item);
+		}
+
+		page = new ListExtractor.InfoItemsPage<>(list, null, List.of());
+
+		byte[] data = encode();
+		System.out.println(format + " x" + items + ": " + data.length + " bytes, " +
+				Compression.compress(data, "gzip", Deflater.DEFAULT_COMPRESSION).length + " bytes gzipped");
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		ResponseWriter out = format.newWriter(null, null);
+		HTTPHandlerImpl.encodeItemsPage(out, page, "AQ");
+		return out.toByteArray();
+	}
+}
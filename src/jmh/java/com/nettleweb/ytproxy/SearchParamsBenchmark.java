@@ -0,0 +1,38 @@
+package com.nettleweb.ytproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SearchParamsBenchmark {
+	@Param({"stream", "search", "page"})
+	public String kind;
+
+	private String query;
+
+	@Setup
+	public void setup() {
+		// raw query strings as sent by the web client
+		query = switch (kind) {
+			case "stream" -> "t=0&u=https%3A%2F%2Fwww.youtube.com%2Fwatch%3Fv%3DdQw4w9WgXcQ";
+			case "search" -> "t=0&q=lo-fi%20hip%20hop%20radio%20%E2%80%93%20beats%20to%20relax%2Fstudy%20to&f=videos" +
+					"&s=relevance&fields=results(url,name,thumbnails)&thumb=320";
+			case "page" -> "t=0&q=java+tutorial&f=videos&s=relevance&p=AUEFAAUBAgMEBQYHCAkKCwwNDg8QERITFBUWFxgZGhscHR4f" +
+					"ICEiIyQlJicoKSorLC0uLzAxMjM0NTY3ODk6Ozw9Pj9AQUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVpbXF1eX2BhYmNkZWZn" +
+					"aGlqa2xtbm9wcXJzdHV2d3h5ent8fX5_gIGCg4SFhoeIiYqLjI2Oj5CRkpOUlZaXmJmam5ydnp-goaKjpKWmp6ipqqusra6v";
+			default -> throw new IllegalArgumentException(kind);
+		};
+	}
+
+	@Benchmark
+	public Map<String, String> parse() {
+		return HTTPHandlerImpl.getSearchParams(query);
+	}
+}
@@ -0,0 +1,438 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.*;
+import org.schabi.newpipe.extractor.channel.*;
+import org.schabi.newpipe.extractor.downloader.Request;
+import org.schabi.newpipe.extractor.downloader.Response;
+import org.schabi.newpipe.extractor.kiosk.*;
+import org.schabi.newpipe.extractor.linkhandler.*;
+import org.schabi.newpipe.extractor.localization.*;
+import org.schabi.newpipe.extractor.playlist.*;
+import org.schabi.newpipe.extractor.search.*;
+import org.schabi.newpipe.extractor.stream.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Constructor;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.zip.*;
+
+/**
+ * Measures the bytes allocated per request by each endpoint, handled in-process with its extractions
+ * answered from the fixtures in src/jmh/res/fixtures, and by the hot helpers and the downloader on
+ * their own, and fails when any of them exceeds its budget in the budgets file, has no budget, or could
+ * not be measured. What is measured is therefore the server's own work: parsing the request, encoding
+ * the response and reading upstream bodies, not that of the extractor. Only the handling thread is
+ * measured, so /streams counts the batch around the items, which the batch workers encode.
+ */
+public final class AllocationCheck {
+	private static final String[] routes = {"/search", "/stream", "/streams", "/channel", "/playlist", "/trending",
+			"/stats", "/metrics"};
+
+	private static final String videoUrl = "https://www.youtube.com/watch?v=Oqo5nkJdDbv";
+	private static final String channelUrl = "https://www.youtube.com/channel/UCsBjURrPoezykLs9EqgamOA";
+	private static final String playlistUrl = "https://www.youtube.com/playlist?list=PLl4kZ0Q2vdGz3Qm1s0ZJ1cE9a6y8tYv1K";
+	private static final String query = "lo-fi hip hop radio \u2013 beats to relax/study to";
+
+	// how much the measured values may grow before a budget written with --update is exceeded
+	private static final double headroom = 1.25d;
+
+	private final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private final int warmup;
+	private final int iterations;
+
+	private AllocationCheck(int warmup, int iterations) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+	}
+
+	public static void main(String[] args) throws Throwable {
+		Path budgets = Paths.get("src/loadtest/allocation-budgets.properties");
+		int warmup = 200;
+		int iterations = 50;
+		boolean update = false;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+					case "--budgets" -> budgets = Paths.get(args[++i]);
+					case "--warmup" -> warmup = Integer.parseInt(args[++i]);
+					case "--iterations" -> iterations = Integer.parseInt(args[++i]);
+					case "--update" -> update = true;
+					default -> throw new IllegalArgumentException(args[i]);
+				}
+			}
+
+			if (warmup < 0 || iterations <= 0)
+				throw new IllegalArgumentException();
+		} catch (Exception e) {
+			Console.printErr("Usage: allocation-check [--budgets <file>] [--warmup <n>] [--iterations <n>] [--update]");
+			System.exit(1);
+			return;
+		}
+
+		Properties limits = new Properties();
+		if (Files.exists(budgets)) {
+			try (Reader reader = Files.newBufferedReader(budgets, StandardCharsets.UTF_8)) {
+				limits.load(reader);
+			}
+		}
+
+		AllocationCheck check = new AllocationCheck(warmup, iterations);
+		Map<String, Long> measured = new LinkedHashMap<>();
+
+		// helpers on every request's path, without any upstream
+		String search = "t=0&q=lo-fi%20hip%20hop%20radio%20%E2%80%93%20beats%20to%20relax%2Fstudy%20to&f=videos" +
+				"&s=relevance&fields=results(url,name,thumbnails)&thumb=320";
+		measured.put("getSearchParams", check.measure(() -> HTTPHandlerImpl.getSearchParams(search)));
+
+		// without the final String, whose size is that of the body
+		for (int size : new int[]{65536, 1048576}) {
+			byte[] body = new byte[size];
+			new Random(size).nextBytes(body);
+			for (int i = 0; i < size; i++)
+				body[i] &= 0x7f;
+
+			measured.put("readBody." + (size >> 10) + "k", check.measure(() ->
+					DownloaderImpl.readBody(new ByteArrayInputStream(body), -1L)) - size);
+		}
+
+		// a whole upstream request, answered over loopback with a compressed fixture, including the String
+		// of the body
+		byte[] fixture = Fixtures.bytes("stream.json");
+		String expected = new String(fixture, StandardCharsets.UTF_8);
+		HttpServer upstream = serve(fixture);
+		boolean failed = false;
+		try {
+			DownloaderImpl downloader = new DownloaderImpl(Proxy.NO_PROXY, "http://127.0.0.1:" +
+					upstream.getAddress().getPort(), 10000, 10000);
+			NewPipe.init(downloader, Localization.fromLocale(Locale.ROOT), new ContentCountry("US"));
+			Request request = new Request("GET", videoUrl, Map.of("Accept-Language", List.of("en")), null, null,
+					false);
+			measured.put("DownloaderImpl.execute", check.measure(() -> {
+				Response response = downloader.execute(request);
+				if (response.responseCode() != 200 || !response.responseBody().equals(expected))
+					throw new IOException("Upstream request failed with " + response.responseCode());
+			}));
+
+			// every request is extracted, encoded and sent again
+			HTTPHandlerImpl.streamCache.setCapacity(0L);
+			HTTPHandlerImpl.fixtures = fixtures();
+			failed |= !checkBatch();
+
+			for (String route : routes) {
+				String target = switch (route) {
+					case "/search" -> "/search?t=0&q=" + URLEncoder.encode(query, StandardCharsets.UTF_8);
+					case "/stream" -> "/stream?t=0&u=" + URLEncoder.encode(videoUrl, StandardCharsets.UTF_8);
+					case "/streams" -> "/streams?t=0" + ("&u=" + URLEncoder.encode(videoUrl, StandardCharsets.UTF_8))
+							.repeat(3);
+					case "/channel" -> "/channel?t=0&u=" + URLEncoder.encode(channelUrl, StandardCharsets.UTF_8);
+					case "/playlist" -> "/playlist?t=0&u=" + URLEncoder.encode(playlistUrl, StandardCharsets.UTF_8);
+					case "/trending" -> "/trending?t=0";
+					default -> route;
+				};
+
+				measured.put(route, check.measure(() -> {
+					Exchange exchange = new Exchange(target, OutputStream.nullOutputStream());
+					HTTPHandlerImpl.instance.handle(exchange);
+					if (exchange.getResponseCode() != 200)
+						throw new IOException(target + " failed with " + exchange.getResponseCode());
+				}));
+			}
+		} catch (Exception e) {
+			Console.error("Failed to measure: ", e);
+			failed = true;
+		} finally {
+			HTTPHandlerImpl.fixtures = null;
+			upstream.stop(0);
+		}
+
+		if (update && !failed) {
+			StringBuilder str = new StringBuilder();
+			str.append("# Bytes allocated per request, written by allocation-check --update with ")
+					.append(Math.round((headroom - 1d) * 100d)).append("% headroom.\n");
+			for (Map.Entry<String, Long> e : measured.entrySet())
+				str.append(e.getKey()).append('=').append(Math.round(e.getValue() * headroom)).append('\n');
+
+			Files.writeString(budgets, str, StandardCharsets.UTF_8);
+			Console.log("Budgets written to " + budgets);
+		}
+
+		Console.println(String.format("%-24s %14s %14s", "check", "bytes/request", "budget"));
+		for (Map.Entry<String, Long> e : measured.entrySet()) {
+			String limit = limits.getProperty(e.getKey());
+			long budget = limit == null ? -1L : Long.parseLong(limit.trim());
+			boolean over = !update && budget >= 0L && e.getValue() > budget;
+			boolean unbudgeted = !update && budget < 0L;
+			failed |= over || unbudgeted;
+
+			Console.println(String.format("%-24s %14d %14s%s", e.getKey(), e.getValue(),
+					budget < 0L ? "-" : Long.toString(budget),
+					over ? "  OVER BUDGET" : unbudgeted ? "  NO BUDGET" : ""));
+		}
+
+		for (String route : routes) {
+			if (!measured.containsKey(route)) {
+				Console.println(String.format("%-24s %14s %14s  NOT MEASURED", route, "-", "-"));
+				failed = true;
+			}
+		}
+
+		System.exit(failed ? 1 : 0);
+	}
+
+	/**
+	 * Returns the info of every extraction the measured requests make, built from the fixtures: the
+	 * stream fixture for /stream, and the items of the search fixture for the lists.
+	 */
+	@NotNull
+	private static Function<String, Object> fixtures() throws Exception {
+		StreamingService service = ServiceList.YouTube;
+		StreamInfo stream = Fixtures.stream("stream.json");
+		List<InfoItem> items = Fixtures.page("search.json").getItems();
+		List<StreamInfoItem> streams = new ArrayList<>();
+		for (InfoItem item : items) {
+			if (item instanceof StreamInfoItem s)
+				streams.add(s);
+		}
+
+		SearchInfo search = new SearchInfo(service.getServiceId(), service.getSearchQHFactory().fromQuery(query,
+				List.of("videos"), "relevance"), query);
+		search.setRelatedItems(items);
+
+		ChannelInfo channel = new ChannelInfo(service.getServiceId(), "UCsBjURrPoezykLs9EqgamOA", channelUrl,
+				channelUrl, stream.getUploaderName());
+		channel.setFeedUrl("https://www.youtube.com/feeds/videos.xml?channel_id=UCsBjURrPoezykLs9EqgamOA");
+		channel.setVerified(stream.isUploaderVerified());
+		channel.setSubscriberCount(stream.getUploaderSubscriberCount());
+		channel.setDescription(stream.getDescription().getContent());
+		channel.setTags(stream.getTags());
+		channel.setAvatars(stream.getThumbnails());
+		channel.setBanners(stream.getThumbnails());
+
+		PlaylistInfo playlist = newInfo(PlaylistInfo.class, service, playlistUrl, "PLl4kZ0Q2vdGz3Qm1s0ZJ1cE9a6y8tYv1K",
+				stream.getName());
+		playlist.setStreamCount(streams.size());
+		playlist.setDescription(stream.getDescription());
+		playlist.setPlaylistType(PlaylistInfo.PlaylistType.NORMAL);
+		playlist.setBanners(List.of());
+		playlist.setUploaderUrl(stream.getUploaderUrl());
+		playlist.setUploaderName(stream.getUploaderName());
+		playlist.setThumbnails(stream.getThumbnails());
+		playlist.setRelatedItems(streams);
+
+		KioskInfo kiosk = newInfo(KioskInfo.class, service, "https://www.youtube.com/feed/trending", "Trending",
+				"Trending");
+		kiosk.setRelatedItems(streams);
+
+		return key -> switch (key.substring(0, key.indexOf(':'))) {
+			case "stream" -> stream;
+			case "search" -> search;
+			case "channel" -> channel;
+			case "playlist" -> playlist;
+			case "kiosk" -> kiosk;
+			default -> throw new IllegalArgumentException("No fixture for " + key);
+		};
+	}
+
+	// playlist and kiosk infos can only be built by the extractor, so their constructor is borrowed
+	@NotNull
+	private static <T extends ListInfo<?>> T newInfo(@NotNull Class<T> type, @NotNull StreamingService service,
+	                                                 @NotNull String url, @NotNull String id,
+	                                                 @NotNull String name) throws Exception {
+		Constructor<T> constructor = type.getDeclaredConstructor(int.class, ListLinkHandler.class, String.class);
+		constructor.setAccessible(true);
+		return constructor.newInstance(service.getServiceId(), new ListLinkHandler(url, url, id, List.of(), ""), name);
+	}
+
+	/**
+	 * Starts a loopback server answering every request with the given body, compressed as the upstream
+	 * would.
+	 */
+	@NotNull
+	private static HttpServer serve(byte[] body) throws IOException {
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+			out.write(body);
+		}
+
+		byte[] compressed = gzip.toByteArray();
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+		server.createContext("/", exchange -> {
+			try (exchange) {
+				exchange.getRequestBody().readAllBytes();
+				exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+				exchange.sendResponseHeaders(200, compressed.length);
+				exchange.getResponseBody().write(compressed);
+			}
+		});
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.start();
+		return server;
+	}
+
+	/**
+	 * Checks that every item of a /streams batch is the document /stream returns for the same video and
+	 * fields, which apply to each item and not to the batch around them.
+	 */
+	private static boolean checkBatch() throws IOException {
+		String request = "/stream?t=0&u=" + URLEncoder.encode(videoUrl, StandardCharsets.UTF_8);
+		for (String fields : new String[]{"", "&fields=name", "&fields=id,videoStreams(height,url)"}) {
+			String stream = fetch(request + fields);
+			String batch = fetch("/streams" + request.substring(7) + fields);
+			if (!batch.startsWith("{\"results\":[{") || !batch.contains("\"stream\":" + stream + "}")) {
+				Console.printErr("/streams differs from /stream for " + request + fields + ": " + batch);
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@NotNull
+	private static String fetch(@NotNull String request) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		Exchange exchange = new Exchange(request, body);
+		HTTPHandlerImpl.instance.handle(exchange);
+		if (exchange.getResponseCode() != 200)
+			throw new IOException(request + " failed with " + exchange.getResponseCode());
+
+		return body.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the bytes allocated by one run of the task on this thread, after warming it up.
+	 */
+	private long measure(@NotNull Task task) throws Exception {
+		for (int i = 0; i < warmup; i++)
+			task.run();
+
+		long id = Thread.currentThread().threadId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < iterations; i++)
+			task.run();
+
+		return (threads.getThreadAllocatedBytes(id) - before) / iterations;
+	}
+
+	private interface Task {
+		void run() throws Exception;
+	}
+
+	// just enough of an exchange for the handler, writing the response body to the given stream
+	private static final class Exchange extends HttpExchange {
+		private static final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				8080);
+
+		private final Headers requestHeaders = new Headers();
+		private final Headers responseHeaders = new Headers();
+		private final Map<String, Object> attributes = new HashMap<>();
+		private final URI uri;
+		private InputStream in = InputStream.nullInputStream();
+		private OutputStream out;
+		private int status = -1;
+
+		private Exchange(String uri, OutputStream out) {
+			this.uri = URI.create(uri);
+			this.out = out;
+		}
+
+		@Override
+		public Headers getRequestHeaders() {
+			return requestHeaders;
+		}
+
+		@Override
+		public Headers getResponseHeaders() {
+			return responseHeaders;
+		}
+
+		@Override
+		public URI getRequestURI() {
+			return uri;
+		}
+
+		@Override
+		public String getRequestMethod() {
+			return "GET";
+		}
+
+		@Override
+		public HttpContext getHttpContext() {
+			return null;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public InputStream getRequestBody() {
+			return in;
+		}
+
+		@Override
+		public OutputStream getResponseBody() {
+			return out;
+		}
+
+		@Override
+		public void sendResponseHeaders(int rCode, long responseLength) {
+			status = rCode;
+		}
+
+		@Override
+		public InetSocketAddress getRemoteAddress() {
+			return address;
+		}
+
+		@Override
+		public int getResponseCode() {
+			return status;
+		}
+
+		@Override
+		public InetSocketAddress getLocalAddress() {
+			return address;
+		}
+
+		@Override
+		public String getProtocol() {
+			return "HTTP/1.1";
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			return attributes.get(name);
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			attributes.put(name, value);
+		}
+
+		@Override
+		public void setStreams(InputStream i, OutputStream o) {
+			if (i != null)
+				in = i;
+			if (o != null)
+				out = o;
+		}
+
+		@Override
+		public HttpPrincipal getPrincipal() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Measures how many requests per second the server sustains. For each worker count, the server is
+ * started in its own JVM against a {@link StubUpstream} replaying an upstream recording, and is sent
+ * an open-loop mix of requests at a fixed rate: requests are sent on schedule whether or not earlier
+ * ones have completed, and latency is measured from the scheduled time, so a stalled server is not
+ * hidden by the load generator waiting for it (coordinated omission).
+ */
+public final class LoadTest {
+	private final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(5L))
+			.executor(Executors.newVirtualThreadPerTaskExecutor())
+			.build();
+
+	private final String[] mix;
+	private final RecordedTargets targets;
+	private String base = null;
+
+	private LoadTest(String[] mix, RecordedTargets targets) {
+		this.mix = mix;
+		this.targets = targets;
+	}
+
+	public static void main(String[] args) throws Throwable {
+		Path recording = null;
+		double rate = 50d;
+		long duration = 30L;
+		long warmup = 10L;
+		int[] workers = {1, 2, 4, 8};
+		String executor = "platform";
+		String mix = "/stream=3,/search=1";
+		long latency = -1L;
+		double errorRate = 0d;
+		List<String> serverArgs = new ArrayList<>(List.of("--cache-size", "0", "--kiosk-refresh", "0"));
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				switch (arg) {
+					case "--recording" -> recording = Paths.get(args[++i]);
+					case "--rate" -> rate = Double.parseDouble(args[++i]);
+					case "--duration" -> duration = Long.parseLong(args[++i]);
+					case "--warmup" -> warmup = Long.parseLong(args[++i]);
+					case "--workers" -> workers = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt)
+							.toArray();
+					case "--executor" -> executor = args[++i];
+					case "--mix" -> mix = args[++i];
+					case "--latency" -> latency = args[++i].equals("recorded") ? -1L : Long.parseLong(args[i]);
+					case "--error-rate" -> errorRate = Double.parseDouble(args[++i]);
+					case "--server-arg" -> serverArgs.add(args[++i]);
+					case "--help" -> {
+						Console.println("Usage: loadtest --recording <dir> [OPTION...]\n");
+						Console.println("\t--recording <dir>     Upstream recording made with the server's --record option.");
+						Console.println("\t--rate <n>            Requests per second to send (default 50).");
+						Console.println("\t--duration <sec>      Length of each measurement (default 30).");
+						Console.println("\t--warmup <sec>        Load sent before each measurement (default 10).");
+						Console.println("\t--workers <n,...>     Server concurrency settings to compare (default 1,2,4,8).");
+						Console.println("\t--executor <type>     Server executor, \"platform\" (default) or \"virtual\".");
+						Console.println("\t--mix <path=w,...>    Weights of the endpoints (default /stream=3,/search=1).");
+						Console.println("\t--latency <ms>        Upstream delay, or \"recorded\" (default).");
+						Console.println("\t--error-rate <r>      Share of upstream requests failing with 503 (default 0).");
+						Console.println("\t--server-arg <arg>    Pass an argument to the server, may be repeated.\n");
+						System.exit(0);
+					}
+					default -> throw new IllegalArgumentException(arg);
+				}
+			}
+
+			if (recording == null || rate <= 0d || duration <= 0L || warmup < 0L || workers.length == 0 ||
+					errorRate < 0d || errorRate > 1d)
+				throw new IllegalArgumentException();
+		} catch (Exception e) {
+			Console.printErr("Error: Invalid arguments.");
+			Console.printErr("Try '--help' for more information.");
+			System.exit(1);
+			return;
+		}
+
+		RecordedTargets targets = RecordedTargets.of(recording);
+		LoadTest test = new LoadTest(parseMix(mix), targets);
+		for (String path : test.mix) {
+			if (targets.request(path, 0) == null) {
+				Console.printErr("Error: The recording has no requests for " + path + ".");
+				System.exit(1);
+			}
+		}
+
+		Console.log("Recording: " + targets.videos.size() + " videos, " + targets.queries.size() + " queries");
+		StubUpstream stub = new StubUpstream(recording, latency, errorRate);
+		String upstream = stub.start();
+
+		Console.println(String.format("%7s %9s %9s %8s %8s %8s %8s %8s %8s %12s  %s", "workers", "offered",
+				"achieved", "p50", "p90", "p99", "p99.9", "max", "raw p99", "ok/sent", "errors"));
+
+		try {
+			for (int n : workers) {
+				Process server = test.startServer(n, executor, upstream, serverArgs);
+				try {
+					test.run(rate, warmup);
+					Result result = test.run(rate, duration);
+					Console.println(result.format(n, rate));
+				} finally {
+					server.destroy();
+					if (!server.waitFor(10L, TimeUnit.SECONDS))
+						server.destroyForcibly();
+				}
+			}
+		} finally {
+			stub.stop();
+		}
+
+		System.exit(0);
+	}
+
+	@NotNull
+	private static String[] parseMix(@NotNull String spec) {
+		List<String> mix = new ArrayList<>();
+		for (String part : spec.split(",")) {
+			int i = part.indexOf('=');
+			String path = i < 0 ? part : part.substring(0, i);
+			int weight = i < 0 ? 1 : Integer.parseInt(part.substring(i + 1));
+			if (!Set.of("/stream", "/search", "/channel", "/playlist", "/trending").contains(path))
+				throw new IllegalArgumentException(path);
+
+			for (int j = 0; j < weight; j++)
+				mix.add(path);
+		}
+
+		if (mix.isEmpty())
+			throw new IllegalArgumentException(spec);
+
+		return mix.toArray(new String[0]);
+	}
+
+	/**
+	 * Starts the server in a new JVM with the given concurrency and waits until it answers.
+	 */
+	@NotNull
+	private Process startServer(int workers, String executor, String upstream, List<String> args)
+			throws IOException, InterruptedException {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			port = socket.getLocalPort();
+		}
+
+		List<String> command = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"),
+				"-Xms256m", "-Xmx1024m", "-cp", System.getProperty("java.class.path"), Main.class.getName(),
+				"--host", "127.0.0.1", "--port", Integer.toString(port), "--upstream", upstream, "--executor",
+				executor, "--concurrency", Integer.toString(workers)));
+		command.addAll(args);
+
+		File log = File.createTempFile("ytproxy-loadtest-", ".log");
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+
+		URI uri = URI.create("http://127.0.0.1:" + port + "/stats");
+		long deadline = System.nanoTime() + 60000000000L;
+		while (System.nanoTime() < deadline) {
+			if (!process.isAlive())
+				throw new IOException("Server exited with " + process.exitValue() + ", see " + log);
+
+			try {
+				client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding());
+				Console.log("Server with " + workers + " workers on port " + port + ", log: " + log);
+				base = "http://127.0.0.1:" + port;
+				return process;
+			} catch (IOException e) {
+				Thread.sleep(200L);
+			}
+		}
+
+		process.destroyForcibly();
+		throw new IOException("Server did not start in time, see " + log);
+	}
+
+	/**
+	 * Sends requests at the given rate for the given number of seconds and waits for all of them.
+	 */
+	@NotNull
+	private Result run(double rate, long seconds) throws InterruptedException {
+		int count = (int) Math.max(Math.round(rate * seconds), 1L);
+		double interval = 1e9d / rate;
+		Result result = new Result(count);
+		Random random = new Random(42L);
+
+		try (ExecutorService exec = Executors.newVirtualThreadPerTaskExecutor()) {
+			long start = System.nanoTime() + 10000000L;
+			result.start = start;
+
+			for (int i = 0; i < count; i++) {
+				long intended = start + (long) (i * interval);
+				for (long wait = intended - System.nanoTime(); wait > 0L; wait = intended - System.nanoTime())
+					LockSupport.parkNanos(wait);
+
+				int index = i;
+				URI uri = URI.create(base + targets.request(mix[random.nextInt(mix.length)], i));
+				exec.execute(() -> send(uri, intended, index, result));
+			}
+		}
+
+		return result;
+	}
+
+	private void send(URI uri, long intended, int index, Result result) {
+		long sent = System.nanoTime();
+		int status;
+		try {
+			status = client.send(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30L)).build(),
+					HttpResponse.BodyHandlers.discarding()).statusCode();
+		} catch (HttpTimeoutException e) {
+			status = 0;
+		} catch (Exception e) {
+			status = -1;
+		}
+
+		long end = System.nanoTime();
+		result.corrected[index] = end - intended;
+		result.raw[index] = end - sent;
+		result.end[index] = end;
+		result.status[index] = status;
+	}
+
+	private static final class Result {
+		private final long[] corrected;
+		private final long[] raw;
+		private final long[] end;
+		private final int[] status;
+		private long start = 0L;
+
+		private Result(int count) {
+			this.corrected = new long[count];
+			this.raw = new long[count];
+			this.end = new long[count];
+			this.status = new int[count];
+		}
+
+		@NotNull
+		private String format(int workers, double rate) {
+			int ok = 0;
+			long last = start;
+			Map<String, Integer> errors = new TreeMap<>();
+			for (int i = 0; i < status.length; i++) {
+				last = Math.max(last, end[i]);
+				if (status[i] == 200)
+					ok++;
+				else
+					errors.merge(status[i] == 0 ? "timeout" : status[i] < 0 ? "failed" : Integer.toString(status[i]),
+							1, Integer::sum);
+			}
+
+			long[] corrected = this.corrected.clone();
+			long[] raw = this.raw.clone();
+			Arrays.sort(corrected);
+			Arrays.sort(raw);
+
+			StringBuilder str = new StringBuilder();
+			for (Map.Entry<String, Integer> e : errors.entrySet())
+				str.append(str.isEmpty() ? "" : ", ").append(e.getKey()).append('=').append(e.getValue());
+
+			return String.format("%7d %9.1f %9.1f %8s %8s %8s %8s %8s %8s %12s  %s", workers, rate,
+					ok / ((last - start) / 1e9d), ms(corrected, 0.5d), ms(corrected, 0.9d), ms(corrected, 0.99d),
+					ms(corrected, 0.999d), ms(corrected, 1d), ms(raw, 0.99d), ok + "/" + status.length,
+					str.isEmpty() ? "-" : str);
+		}
+
+		private static String ms(long[] sorted, double quantile) {
+			int i = Math.min((int) Math.ceil(quantile * sorted.length) - 1, sorted.length - 1);
+			return String.format("%.1fms", sorted[Math.max(i, 0)] / 1e6d);
+		}
+	}
+}
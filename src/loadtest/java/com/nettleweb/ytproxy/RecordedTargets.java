@@ -0,0 +1,92 @@
+package com.nettleweb.ytproxy;
+
+import org.jetbrains.annotations.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * The videos, queries, channels and playlists an upstream recording can answer, found in the bodies of
+ * the recorded innertube requests.
+ */
+final class RecordedTargets {
+	private static final Pattern videoId = Pattern.compile("\"videoId\"\\s*:\\s*\"([\\w-]{11})\"");
+	private static final Pattern query = Pattern.compile("\"query\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+	private static final Pattern browseId = Pattern.compile("\"browseId\"\\s*:\\s*\"([\\w-]+)\"");
+
+	final List<String> videos;
+	final List<String> queries;
+	final List<String> channels;
+	final List<String> playlists;
+	final boolean trending;
+
+	private RecordedTargets(List<String> videos, List<String> queries, List<String> channels, List<String> playlists,
+	                        boolean trending) {
+		this.videos = videos;
+		this.queries = queries;
+		this.channels = channels;
+		this.playlists = playlists;
+		this.trending = trending;
+	}
+
+	@NotNull
+	static RecordedTargets of(@NotNull Path recording) throws IOException {
+		Set<String> videos = new LinkedHashSet<>();
+		Set<String> queries = new LinkedHashSet<>();
+		Set<String> channels = new LinkedHashSet<>();
+		Set<String> playlists = new LinkedHashSet<>();
+		boolean trending = false;
+
+		for (String body : RecordedDownloader.requestBodies(recording)) {
+			Matcher m = videoId.matcher(body);
+			if (m.find())
+				videos.add(m.group(1));
+
+			m = query.matcher(body);
+			if (m.find())
+				queries.add(m.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+
+			m = browseId.matcher(body);
+			if (m.find()) {
+				String id = m.group(1);
+				if (id.startsWith("UC"))
+					channels.add(id);
+				else if (id.startsWith("VL"))
+					playlists.add(id.substring(2));
+				else if (id.equals("FEtrending"))
+					trending = true;
+			}
+		}
+
+		return new RecordedTargets(new ArrayList<>(videos), new ArrayList<>(queries), new ArrayList<>(channels),
+				new ArrayList<>(playlists), trending);
+	}
+
+	/**
+	 * Returns the i-th request for the given endpoint, cycling through the recorded targets, or null if
+	 * the recording has none for it.
+	 */
+	@Nullable
+	String request(@NotNull String path, int i) {
+		return switch (path) {
+			case "/stream" -> videos.isEmpty() ? null : "/stream?t=0&u=" +
+					encode("https://www.youtube.com/watch?v=" + videos.get(i % videos.size()));
+			case "/search" -> queries.isEmpty() ? null : "/search?t=0&f=videos&q=" +
+					encode(queries.get(i % queries.size()));
+			case "/channel" -> channels.isEmpty() ? null : "/channel?t=0&u=" +
+					encode("https://www.youtube.com/channel/" + channels.get(i % channels.size()));
+			case "/playlist" -> playlists.isEmpty() ? null : "/playlist?t=0&u=" +
+					encode("https://www.youtube.com/playlist?list=" + playlists.get(i % playlists.size()));
+			case "/trending" -> trending ? "/trending?t=0" : null;
+			default -> throw new IllegalArgumentException(path);
+		};
+	}
+
+	private static String encode(String str) {
+		return URLEncoder.encode(str, StandardCharsets.UTF_8);
+	}
+}
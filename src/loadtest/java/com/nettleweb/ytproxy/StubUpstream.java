@@ -0,0 +1,103 @@
+package com.nettleweb.ytproxy;
+
+import com.nettleweb.client.Console;
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.*;
+import org.schabi.newpipe.extractor.downloader.Request;
+import org.schabi.newpipe.extractor.downloader.Response;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Stands in for the upstream hosts during load tests, answering from an upstream recording with a
+ * configurable delay and error rate. The server under test reaches it with {@code --upstream}, which
+ * turns {@code https://host/path} into {@code /host/path}.
+ */
+final class StubUpstream implements HttpHandler {
+	private final RecordedDownloader recording;
+	private final double errorRate;
+	private HttpServer server = null;
+
+	/**
+	 * @param latency   delay of every response in milliseconds, or -1 to replay the recorded durations
+	 * @param errorRate share of requests answered with 503 instead, from 0 to 1
+	 */
+	StubUpstream(@NotNull Path recording, long latency, double errorRate) throws IOException {
+		this.recording = RecordedDownloader.replay(recording, latency);
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Starts serving on an ephemeral loopback port and returns the base URL to pass as {@code --upstream}.
+	 */
+	@NotNull
+	String start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		server.createContext("/", this);
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.start();
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	void stop() {
+		if (server != null)
+			server.stop(0);
+	}
+
+	@Override
+	public void handle(@NotNull HttpExchange exchange) throws IOException {
+		try (exchange) {
+			URI uri = exchange.getRequestURI();
+			String query = uri.getRawQuery();
+			String url = "https:/" + uri.getRawPath() + (query == null ? "" : "?" + query);
+			byte[] body = exchange.getRequestBody().readAllBytes();
+
+			if (errorRate > 0d && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				send(exchange, 503, "Injected error");
+				return;
+			}
+
+			Response response;
+			try {
+				response = recording.execute(new Request(exchange.getRequestMethod(), url,
+						exchange.getRequestHeaders(), body.length > 0 ? body : null, null, false));
+			} catch (IOException e) {
+				send(exchange, 404, "Not recorded");
+				return;
+			}
+
+			Headers headers = exchange.getResponseHeaders();
+			for (Map.Entry<String, List<String>> e : response.responseHeaders().entrySet())
+				headers.put(e.getKey(), e.getValue());
+
+			String text = response.responseBody();
+			byte[] data = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+
+			// compressed as the upstream hosts would, recordings keep bodies decoded
+			String encoding = data.length >= Compression.minSize ? Compression.negotiate(exchange) : null;
+			if (encoding != null) {
+				data = Compression.compress(data, encoding, 6);
+				headers.set("Content-Encoding", encoding);
+			}
+
+			exchange.sendResponseHeaders(response.responseCode(), data.length > 0 ? data.length : -1L);
+			if (data.length > 0)
+				exchange.getResponseBody().write(data);
+		} catch (Exception e) {
+			Console.error("Stub upstream failed: ", e);
+		}
+	}
+
+	// with a body, as HttpURLConnection has no error stream without one
+	private static void send(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] data = message.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(status, data.length);
+		exchange.getResponseBody().write(data);
+	}
+}